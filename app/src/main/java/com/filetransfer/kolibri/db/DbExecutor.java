@@ -0,0 +1,69 @@
+package com.filetransfer.kolibri.db;
+
+import android.util.Log;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// where the database is accessed, never the main thread and never a network thread. writes go to a single writer
+// in the order they were enqueued, so a write never waits for another one's lock and callers never wait at all.
+// reads run beside it, the database is in wal mode
+public final class DbExecutor {
+    private static final String TAG = DbExecutor.class.getSimpleName();
+    private static final ScheduledThreadPoolExecutor sWriter = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "db-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ExecutorService sReaders = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "db-reader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        sWriter.setKeepAliveTime(10, TimeUnit.SECONDS);
+        sWriter.allowCoreThreadTimeOut(true);
+    }
+
+    private DbExecutor() {
+    }
+
+    // enqueues a write, a failure is logged
+    public static void execute(Runnable write) {
+        sWriter.execute(() -> {
+            try {
+                write.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "database write failed", e);
+            }
+        });
+    }
+
+    // enqueues a write after delay ms, behind the writes enqueued by then
+    public static void schedule(Runnable write, long delay) {
+        sWriter.schedule(() -> execute(write), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // enqueues a write whose result is needed
+    public static <T> CompletableFuture<T> submit(Supplier<T> write) {
+        return CompletableFuture.supplyAsync(write, sWriter);
+    }
+
+    public static <T> CompletableFuture<T> query(Supplier<T> read) {
+        return CompletableFuture.supplyAsync(read, sReaders);
+    }
+
+    static Executor writer() {
+        return sWriter;
+    }
+
+    static Executor readers() {
+        return sReaders;
+    }
+}
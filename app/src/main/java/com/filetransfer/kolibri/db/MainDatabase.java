@@ -3,28 +3,64 @@ package com.filetransfer.kolibri.db;
 import android.app.Application;
 import android.content.Context;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.filetransfer.kolibri.db.dao.ChatDao;
 import com.filetransfer.kolibri.db.dao.FileDao;
+import com.filetransfer.kolibri.db.dao.TimelineDao;
 import com.filetransfer.kolibri.db.entity.*;
 
-@Database(entities = {FileEntry.class, ChatEntry.class}, version = 1, exportSchema = false)
+@Database(entities = {FileEntry.class, ChatEntry.class}, views = {TimelineRow.class}, version = 4, exportSchema = false)
 public abstract class MainDatabase extends RoomDatabase {
     public static final String NAME = "main-database";
     public abstract ChatDao chatDao();
     public abstract FileDao fileDao();
+    public abstract TimelineDao timelineDao();
 
     private static volatile MainDatabase INSTANCE = null;
 
+    private static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE file_entry ADD COLUMN transfer_id INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE file_entry ADD COLUMN fingerprint INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    private static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_file_entry_created_at ON file_entry (created_at)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_file_entry_status ON file_entry (status)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_file_entry_device_name ON file_entry (device_name)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_chat_entry_created_at ON chat_entry (created_at)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_chat_entry_device_name ON chat_entry (device_name)");
+        }
+    };
+
+    private static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            // the statement room expects to find for the view
+            db.execSQL("CREATE VIEW `" + TimelineRow.VIEW + "` AS " + TimelineRow.QUERY);
+        }
+    };
+
     public static MainDatabase getInstance(Context ctx) {
         if (INSTANCE == null) {
             synchronized (MainDatabase.class) {
                 if (INSTANCE == null) {
+                    // queries go through DbExecutor, wal lets them read while the writer writes
                     INSTANCE = Room.databaseBuilder(ctx, MainDatabase.class, MainDatabase.NAME)
-                            .allowMainThreadQueries()
+                            .setJournalMode(JournalMode.WRITE_AHEAD_LOGGING)
+                            .setQueryExecutor(DbExecutor.readers())
+                            .setTransactionExecutor(DbExecutor.writer())
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4)
                             .build();
                 }
             }
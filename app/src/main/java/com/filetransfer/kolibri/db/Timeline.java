@@ -0,0 +1,96 @@
+package com.filetransfer.kolibri.db;
+
+import com.filetransfer.kolibri.db.dao.TimelineDao;
+import com.filetransfer.kolibri.db.entity.BaseEntry;
+import com.filetransfer.kolibri.db.entity.FileEntry;
+import com.filetransfer.kolibri.db.entity.TimelineRow;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// files and chats as one history ordered by (created_at, files before chats, id), read a window at a time from the
+// timeline view instead of whole tables. blocking, run it on DbExecutor
+public class Timeline {
+    public static final int PAGE_SIZE = 100;
+
+    // the order of the history, as the view sorts it
+    public static final Comparator<BaseEntry> ORDER = Comparator
+            .<BaseEntry>comparingLong(e -> e.createdAt)
+            .thenComparingInt(Timeline::kind)
+            .thenComparingLong(e -> e.id);
+
+    public static class Page {
+        // oldest first
+        public final List<BaseEntry> entries;
+        // there are entries before the first one
+        public final boolean hasMore;
+        // the greatest ids read from each table, -1 if none. entries added later have greater ones
+        public final long lastFileId;
+        public final long lastChatId;
+
+        Page(List<BaseEntry> entries, boolean hasMore, long lastFileId, long lastChatId) {
+            this.entries = entries;
+            this.hasMore = hasMore;
+            this.lastFileId = lastFileId;
+            this.lastChatId = lastChatId;
+        }
+    }
+
+    private final MainDatabase mDb;
+    private final TimelineDao mDao;
+
+    public Timeline(MainDatabase db) {
+        mDb = db;
+        mDao = db.timelineDao();
+    }
+
+    // the last ids are those of the tables, not of the page. one snapshot, so nothing is added between them
+    public Page latest(int limit) {
+        return mDb.runInTransaction(() -> page(mDao.listBefore(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, limit),
+                limit, mDao.lastFileId(), mDao.lastChatId()));
+    }
+
+    // the limit entries right before first
+    public Page before(BaseEntry first, int limit) {
+        TimelineRow[] rows = first instanceof FileEntry
+                // chats at the same time come after it
+                ? mDao.listBefore(first.createdAt, first.id, Long.MIN_VALUE, limit)
+                : mDao.listBefore(first.createdAt, Long.MAX_VALUE, first.id, limit);
+        return page(rows, limit, -1, -1);
+    }
+
+    // the entries inserted after the given ids, wherever they fall in the history. a peer's clock may put them
+    // before entries already loaded
+    public Page added(long lastFileId, long lastChatId) {
+        TimelineRow[] rows = mDao.listAdded(lastFileId, lastChatId);
+        ArrayList<BaseEntry> entries = new ArrayList<>(rows.length);
+        for (TimelineRow row : rows) {
+            entries.add(row.toEntry());
+        }
+        return new Page(entries, false, maxId(rows, TimelineRow.KIND_FILE, lastFileId), maxId(rows, TimelineRow.KIND_CHAT, lastChatId));
+    }
+
+    public static int kind(BaseEntry e) {
+        return e instanceof FileEntry ? TimelineRow.KIND_FILE : TimelineRow.KIND_CHAT;
+    }
+
+    // rows come newest first
+    private static Page page(TimelineRow[] rows, int limit, long lastFileId, long lastChatId) {
+        ArrayList<BaseEntry> entries = new ArrayList<>(rows.length);
+        for (int i = rows.length - 1; i >= 0; --i) {
+            entries.add(rows[i].toEntry());
+        }
+        return new Page(entries, rows.length == limit,
+                maxId(rows, TimelineRow.KIND_FILE, lastFileId), maxId(rows, TimelineRow.KIND_CHAT, lastChatId));
+    }
+
+    private static long maxId(TimelineRow[] rows, int kind, long max) {
+        for (TimelineRow row : rows) {
+            if (row.kind == kind) {
+                max = Math.max(max, row.id);
+            }
+        }
+        return max;
+    }
+}
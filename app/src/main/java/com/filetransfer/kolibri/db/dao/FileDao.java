@@ -4,10 +4,12 @@ import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.Query;
+import androidx.room.Transaction;
 
 import com.filetransfer.kolibri.db.entity.FileEntry;
 
 import java.util.Collection;
+import java.util.List;
 
 @Dao
 public interface FileDao {
@@ -21,10 +23,32 @@ public interface FileDao {
     void updateStatusById(long id, int status);
     @Query("UPDATE file_entry SET transferred = :transferred WHERE id = :id")
     void updateTransferredById(long id, long transferred);
+    // the progress of many tasks in one transaction, the status is left alone where it is negative
+    @Transaction
+    default void updateProgressByIds(long[] ids, long[] transferred, int[] status) {
+        for (int i = 0; i < ids.length; ++i) {
+            updateTransferredById(ids[i], transferred[i]);
+            if (status[i] >= 0) {
+                updateStatusById(ids[i], status[i]);
+            }
+        }
+    }
+    @Query("UPDATE file_entry SET name = :name WHERE id = :id")
+    void updateNameById(long id, String name);
     @Query("UPDATE file_entry SET status = " + FileEntry.STATUS_FAILED + " WHERE status = " + FileEntry.STATUS_RUNNING)
     void abortAllRunningTasks();
+    @Query("SELECT * FROM file_entry WHERE transfer_id = :transferId AND from_self = :fromSelf AND status = " + FileEntry.STATUS_FAILED + " ORDER BY id DESC LIMIT 1")
+    FileEntry findFailedByTransferId(long transferId, boolean fromSelf);
+    @Query("SELECT * FROM file_entry WHERE fingerprint = :fingerprint AND size = :size AND from_self = 0 AND status = " + FileEntry.STATUS_COMPLETED + " ORDER BY id DESC LIMIT 8")
+    FileEntry[] listReceivedByFingerprint(long fingerprint, long size);
+    @Query("SELECT * FROM file_entry WHERE from_self = 0 AND status != " + FileEntry.STATUS_COMPLETED)
+    FileEntry[] listUnfinishedReceived();
+    @Query("DELETE FROM file_entry WHERE id = :id")
+    void deleteById(long id);
     @Insert
     long insert(FileEntry obj);
+    @Insert
+    long[] insertAll(List<FileEntry> objs);
     @Query("DELETE FROM file_entry")
     void removeAll(); // just for dev
 }
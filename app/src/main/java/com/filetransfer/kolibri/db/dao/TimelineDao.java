@@ -0,0 +1,34 @@
+package com.filetransfer.kolibri.db.dao;
+
+import androidx.room.Dao;
+import androidx.room.Query;
+
+import com.filetransfer.kolibri.db.entity.TimelineRow;
+
+@Dao
+public interface TimelineDao {
+    // keyset page of the history, newest first: rows ordered before the key, files up to (createdAt, fileId) and chats
+    // up to (createdAt, chatId). the arms are spelled out over the tables, so each scans its created_at index in order
+    // and stops at the limit. sqlite does not push an order and a limit into the arms of a compound view
+    @Query("SELECT * FROM (SELECT " + TimelineRow.FILE_COLUMNS + " FROM file_entry"
+            + " WHERE created_at <= :createdAt AND (created_at < :createdAt OR id < :fileId)"
+            + " ORDER BY created_at DESC, id DESC LIMIT :limit)"
+            + " UNION ALL SELECT * FROM (SELECT " + TimelineRow.CHAT_COLUMNS + " FROM chat_entry"
+            + " WHERE created_at <= :createdAt AND (created_at < :createdAt OR id < :chatId)"
+            + " ORDER BY created_at DESC, id DESC LIMIT :limit)"
+            + " ORDER BY created_at DESC, kind DESC, id DESC LIMIT :limit")
+    TimelineRow[] listBefore(long createdAt, long fileId, long chatId, int limit);
+
+    @Query("SELECT IFNULL(MAX(id), -1) FROM file_entry")
+    long lastFileId();
+
+    @Query("SELECT IFNULL(MAX(id), -1) FROM chat_entry")
+    long lastChatId();
+
+    // rows inserted after the given ids, in history order. the kind test is constant in every arm of the view, so
+    // each arm is a range over its ids only
+    @Query("SELECT * FROM " + TimelineRow.VIEW + " WHERE kind = " + TimelineRow.KIND_FILE + " AND id > :fileId"
+            + " UNION ALL SELECT * FROM " + TimelineRow.VIEW + " WHERE kind = " + TimelineRow.KIND_CHAT + " AND id > :chatId"
+            + " ORDER BY created_at, kind, id")
+    TimelineRow[] listAdded(long fileId, long chatId);
+}
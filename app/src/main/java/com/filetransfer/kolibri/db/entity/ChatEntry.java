@@ -2,11 +2,12 @@ package com.filetransfer.kolibri.db.entity;
 
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
 import java.util.Date;
 
-@Entity(tableName = "chat_entry")
+@Entity(tableName = "chat_entry", indices = {@Index("created_at"), @Index("device_name")})
 public class ChatEntry extends BaseEntry {
     @ColumnInfo(name = "content")
     public String content;
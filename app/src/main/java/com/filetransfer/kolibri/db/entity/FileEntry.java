@@ -2,11 +2,13 @@ package com.filetransfer.kolibri.db.entity;
 
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
 import java.util.Date;
 
-@Entity(tableName = "file_entry")
+// created_at orders the history, status finds running and failed tasks
+@Entity(tableName = "file_entry", indices = {@Index("created_at"), @Index("status"), @Index("device_name")})
 public class FileEntry extends BaseEntry {
     public static final int STATUS_RUNNING = 0;
     public static final int STATUS_COMPLETED = 1;
@@ -22,6 +24,11 @@ public class FileEntry extends BaseEntry {
     public long transferred;
     @ColumnInfo(name = "status")
     public int status;
+    // stable across resends of the same file, used to find a checkpoint to resume from
+    @ColumnInfo(name = "transfer_id", defaultValue = "0")
+    public long transferId;
+    @ColumnInfo(name = "fingerprint", defaultValue = "0")
+    public long fingerprint;
 
     public FileEntry(String name, String path, long size, String deviceName, boolean fromSelf) {
         this.id = 0;
@@ -0,0 +1,57 @@
+package com.filetransfer.kolibri.db.entity;
+
+import androidx.room.ColumnInfo;
+import androidx.room.DatabaseView;
+
+// files and chats as rows of one history, ordered by (created_at, kind, id). the file columns are null or 0 for chats
+// and the other way round
+@DatabaseView(viewName = TimelineRow.VIEW, value = TimelineRow.QUERY)
+public class TimelineRow {
+    public static final String VIEW = "timeline";
+    public static final int KIND_FILE = 0;
+    public static final int KIND_CHAT = 1;
+    public static final String FILE_COLUMNS = "id, " + KIND_FILE + " AS kind, device_name, created_at, from_self, "
+            + "name, path, size, transferred, status, NULL AS content";
+    public static final String CHAT_COLUMNS = "id, " + KIND_CHAT + " AS kind, device_name, created_at, from_self, "
+            + "NULL AS name, NULL AS path, 0 AS size, 0 AS transferred, 0 AS status, content";
+    public static final String QUERY = "SELECT " + FILE_COLUMNS + " FROM file_entry "
+            + "UNION ALL SELECT " + CHAT_COLUMNS + " FROM chat_entry";
+
+    @ColumnInfo(name = "id")
+    public long id;
+    @ColumnInfo(name = "kind")
+    public int kind;
+    @ColumnInfo(name = "device_name")
+    public String deviceName;
+    @ColumnInfo(name = "created_at")
+    public long createdAt;
+    @ColumnInfo(name = "from_self")
+    public boolean fromSelf;
+    @ColumnInfo(name = "name")
+    public String name;
+    @ColumnInfo(name = "path")
+    public String path;
+    @ColumnInfo(name = "size")
+    public long size;
+    @ColumnInfo(name = "transferred")
+    public long transferred;
+    @ColumnInfo(name = "status")
+    public int status;
+    @ColumnInfo(name = "content")
+    public String content;
+
+    public BaseEntry toEntry() {
+        BaseEntry e;
+        if (kind == KIND_FILE) {
+            FileEntry file = new FileEntry(name, path, size, deviceName, fromSelf);
+            file.transferred = transferred;
+            file.status = status;
+            e = file;
+        } else {
+            e = new ChatEntry(content, deviceName, fromSelf);
+        }
+        e.id = id;
+        e.createdAt = createdAt;
+        return e;
+    }
+}
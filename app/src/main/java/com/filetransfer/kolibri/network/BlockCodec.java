@@ -0,0 +1,149 @@
+package com.filetransfer.kolibri.network;
+
+import com.filetransfer.kolibri.misc.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// per block deflate for file bodies. every block is compressed on its own so that a resumed transfer can start anywhere,
+// blocks that do not shrink are stored as they are
+public class BlockCodec {
+    // raw length, stored length
+    public static final int BLOCK_HEADER_LEN = 4 + 4;
+    // an encoded block fits a pooled buffer of this size
+    public static final int MAX_ENCODED_LEN = 128 * 1024;
+    public static final int MAX_RAW_LEN = MAX_ENCODED_LEN - BLOCK_HEADER_LEN;
+    // the leading blocks of a file decide whether compressing the rest is worth the cpu
+    private static final int PROBE_BLOCKS = 4;
+    private static final double MAX_PROBE_RATIO = 0.9;
+    private static final HashSet<String> COMPRESSED_MIME_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip",
+            "application/gzip",
+            "application/x-gzip",
+            "application/x-bzip2",
+            "application/x-xz",
+            "application/x-7z-compressed",
+            "application/x-rar-compressed",
+            "application/java-archive",
+            "application/vnd.android.package-archive",
+            "application/pdf"));
+
+    private final byte[] mRaw = new byte[MAX_RAW_LEN];
+    private final byte[] mEncoded = new byte[MAX_RAW_LEN];
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private int mProbed = 0;
+    private long mProbeRaw = 0;
+    private long mProbeStored = 0;
+    private boolean mGaveUp = false;
+
+    // images, media, archives and office documents are compressed already
+    public static boolean isCompressible(String fileName) {
+        // the mime lookup only knows lower case extensions, cameras name their files IMG_0001.JPG
+        String mime = Util.resolveMimeType(fileName.toLowerCase(Locale.ROOT));
+        if (mime == null) {
+            return true;
+        }
+        if (mime.startsWith("image/") || mime.startsWith("video/") || mime.startsWith("audio/")) {
+            return false;
+        }
+        return !mime.startsWith("application/vnd.openxmlformats") && !COMPRESSED_MIME_TYPES.contains(mime);
+    }
+
+    // scratch space the caller fills with raw bytes before encode()
+    public byte[] rawBuffer() {
+        return mRaw;
+    }
+
+    // forgets what the previous file taught about the ratio
+    public void startFile() {
+        mProbed = 0;
+        mProbeRaw = 0;
+        mProbeStored = 0;
+        mGaveUp = false;
+    }
+
+    // encodes the first rawLen bytes of rawBuffer() as one block into dst
+    public void encode(int rawLen, ByteBuffer dst) {
+        int storedLen = mGaveUp ? -1 : deflate(rawLen);
+        if (mProbed < PROBE_BLOCKS) {
+            ++mProbed;
+            mProbeRaw += rawLen;
+            mProbeStored += storedLen == -1 ? rawLen : storedLen;
+            if (mProbed == PROBE_BLOCKS && mProbeStored > mProbeRaw * MAX_PROBE_RATIO) {
+                mGaveUp = true;
+            }
+        }
+
+        dst.putInt(rawLen);
+        if (storedLen == -1) {
+            dst.putInt(rawLen);
+            dst.put(mRaw, 0, rawLen);
+        } else {
+            dst.putInt(storedLen);
+            dst.put(mEncoded, 0, storedLen);
+        }
+    }
+
+    // returns the compressed length, or -1 if the block did not shrink
+    private int deflate(int rawLen) {
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        mDeflater.reset();
+        mDeflater.setInput(mRaw, 0, rawLen);
+        mDeflater.finish();
+        int n = 0;
+        while (!mDeflater.finished() && n < rawLen) {
+            n += mDeflater.deflate(mEncoded, n, rawLen - n);
+        }
+        return mDeflater.finished() && n < rawLen ? n : -1;
+    }
+
+    // decodes a block whose stored bytes are the remaining ones of src, returns the raw bytes
+    public ByteBuffer decode(int rawLen, ByteBuffer src) throws IOException {
+        int storedLen = src.remaining();
+        if (storedLen == rawLen) {
+            return src;
+        }
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+        }
+        src.get(mEncoded, 0, storedLen);
+        mInflater.reset();
+        mInflater.setInput(mEncoded, 0, storedLen);
+        int n = 0;
+        try {
+            while (n < rawLen && !mInflater.finished()) {
+                int k = mInflater.inflate(mRaw, n, rawLen - n);
+                if (k == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted block", e);
+        }
+        if (n != rawLen) {
+            throw new IOException("block inflated to " + n + " bytes, expected " + rawLen);
+        }
+        return ByteBuffer.wrap(mRaw, 0, rawLen);
+    }
+
+    public void release() {
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+}
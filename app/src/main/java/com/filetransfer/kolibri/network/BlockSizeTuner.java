@@ -0,0 +1,55 @@
+package com.filetransfer.kolibri.network;
+
+// picks the block size of a single transfer: starts from the socket buffer size, then follows
+// the observed drain rate so that one block keeps the socket busy for about TARGET_BLOCK_TIME_NS
+public class BlockSizeTuner {
+    // how long throughput is accumulated before the block size is re-evaluated
+    private static final long SAMPLE_INTERVAL_NS = 50_000_000L;
+    private static final long TARGET_BLOCK_TIME_NS = 20_000_000L;
+
+    private final int mMaxBlockSize;
+    private int mBlockSize;
+    private long mSampleStart = -1;
+    private long mSampleBytes = 0;
+
+    // socketBufSize is SO_SNDBUF or SO_RCVBUF, maxBlockSize is the ceiling agreed with the peer
+    public BlockSizeTuner(int socketBufSize, int maxBlockSize) {
+        mMaxBlockSize = clamp(maxBlockSize, NetProtocol.MIN_FILE_BLK_SIZE, NetProtocol.MAX_FILE_BLK_SIZE);
+        mBlockSize = clamp(Integer.highestOneBit(Math.max(1, socketBufSize)), NetProtocol.MIN_FILE_BLK_SIZE, mMaxBlockSize);
+    }
+
+    public int blockSize() {
+        return mBlockSize;
+    }
+
+    public int maxBlockSize() {
+        return mMaxBlockSize;
+    }
+
+    public void onTransferred(long bytes) {
+        long now = System.nanoTime();
+        if (mSampleStart < 0) {
+            mSampleStart = now;
+        }
+        mSampleBytes += bytes;
+
+        long elapsed = now - mSampleStart;
+        if (elapsed < SAMPLE_INTERVAL_NS) {
+            return;
+        }
+
+        // step by one power of two at a time so a noisy link does not make it oscillate
+        long target = mSampleBytes * TARGET_BLOCK_TIME_NS / elapsed;
+        if (target >= 2L * mBlockSize) {
+            mBlockSize = Math.min(mBlockSize * 2, mMaxBlockSize);
+        } else if (target < mBlockSize / 2) {
+            mBlockSize = Math.max(mBlockSize / 2, NetProtocol.MIN_FILE_BLK_SIZE);
+        }
+        mSampleStart = now;
+        mSampleBytes = 0;
+    }
+
+    private static int clamp(int v, int min, int max) {
+        return Math.max(min, Math.min(v, max));
+    }
+}
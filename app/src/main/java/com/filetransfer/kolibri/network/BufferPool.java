@@ -0,0 +1,60 @@
+package com.filetransfer.kolibri.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+// direct buffers for the file data path, pooled in power-of-two size classes
+// between MIN_FILE_BLK_SIZE and MAX_FILE_BLK_SIZE
+public class BufferPool {
+    // idle buffers kept per size class, anything beyond is left to the GC
+    private static final int MAX_IDLE_PER_CLASS = 4;
+    private static final int CLASS_COUNT = sizeClass(NetProtocol.MAX_FILE_BLK_SIZE) + 1;
+
+    private static final ArrayList<ArrayDeque<ByteBuffer>> sIdle = new ArrayList<>(CLASS_COUNT);
+
+    static {
+        for (int i = 0; i < CLASS_COUNT; ++i) {
+            sIdle.add(new ArrayDeque<>());
+        }
+    }
+
+    private BufferPool() {}
+
+    // returns a cleared buffer with capacity >= size
+    public static ByteBuffer acquire(int size) {
+        int cls = sizeClass(size);
+        ByteBuffer buf;
+        synchronized (sIdle) {
+            buf = sIdle.get(cls).poll();
+        }
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(NetProtocol.MIN_FILE_BLK_SIZE << cls);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    public static void release(ByteBuffer buf) {
+        if (!buf.isDirect()) {
+            return;
+        }
+        int cls = sizeClass(buf.capacity());
+        synchronized (sIdle) {
+            if (sIdle.get(cls).size() < MAX_IDLE_PER_CLASS) {
+                sIdle.get(cls).push(buf);
+            }
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size > NetProtocol.MAX_FILE_BLK_SIZE) {
+            throw new IllegalArgumentException("size=" + size + " exceeds the largest block size");
+        }
+        int cls = 0;
+        while ((NetProtocol.MIN_FILE_BLK_SIZE << cls) < size) {
+            ++cls;
+        }
+        return cls;
+    }
+}
@@ -8,6 +8,7 @@ import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.util.Pair;
 
+import com.filetransfer.kolibri.db.DbExecutor;
 import com.filetransfer.kolibri.db.dao.ChatDao;
 import com.filetransfer.kolibri.db.entity.ChatEntry;
 
@@ -16,11 +17,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 
 public class CommandController {
@@ -53,7 +57,7 @@ public class CommandController {
         private final Socket mSocket;
         private final int mMyEpoch;
         private Thread mCmdThread;
-        private final byte[] mBuf = new byte[NetProtocol.MAX_CHAT_LEN];
+        private final byte[] mBuf = new byte[Math.max(NetProtocol.MAX_COMMAND_LEN, NetProtocol.MAX_DEVICE_NAME_LEN)];
         private InputStream mInputStream;
 
         ControlTask(Socket socket, int epoch) {
@@ -67,18 +71,14 @@ public class CommandController {
                 // send handshake information
                 OutputStream os = mSocket.getOutputStream();
                 os.write(NetProtocol.HANDSHAKE_HEADER);
-                byte[] devNameBytes = mDevName.getBytes(StandardCharsets.UTF_8);
+                byte[] devNameBytes = FrameCodec.encodeString(mDevName, NetProtocol.MAX_DEVICE_NAME_LEN, "device name");
                 os.write(devNameBytes.length);
                 os.write(devNameBytes);
 
                 mInputStream = mSocket.getInputStream();
                 int headerLen = NetProtocol.HANDSHAKE_HEADER.length;
                 readNBytes(headerLen);
-                for (int i = 0; i < headerLen; ++i) {
-                    if (mBuf[i] != NetProtocol.HANDSHAKE_HEADER[i]) {
-                        throw new IOException("handshake failed, wrong header format");
-                    }
-                }
+                FrameCodec.checkHandshake(ByteBuffer.wrap(mBuf, 0, headerLen));
 
                 readNBytes(1);
                 int pairNameLen = mBuf[0] & 0xFF;
@@ -99,18 +99,21 @@ public class CommandController {
                 mCmdThread.start();
 
                 while (!Thread.interrupted()) {
-                    readNBytes(1);
-                    byte cmd = mBuf[0];
+                    readNBytes(FrameCodec.COMMAND_HEADER_LEN);
+                    ByteBuffer header = ByteBuffer.wrap(mBuf, 0, FrameCodec.COMMAND_HEADER_LEN);
+                    byte cmd = header.get();
+                    int len = FrameCodec.getCommandLength(header);
+                    // unknown commands are skipped as a whole
+                    readNBytes(len);
                     switch (cmd) {
                         case NetProtocol.CMD_CHAT: {
-                            readNBytes(2);
-                            int msgLen = ByteBuffer.wrap(mBuf, 0, 2).getShort();
-
-                            readNBytes(msgLen);
-                            String msg = new String(Arrays.copyOf(mBuf, msgLen), StandardCharsets.UTF_8);
+                            String msg = new String(Arrays.copyOf(mBuf, len), StandardCharsets.UTF_8);
 
-                            mDao.insert(new ChatEntry(msg, mPairName, false));
-                            mHandler.post(mCallback::onChat);
+                            ChatEntry entry = new ChatEntry(msg, mPairName, false);
+                            DbExecutor.execute(() -> {
+                                mDao.insert(entry);
+                                mHandler.post(mCallback::onChat);
+                            });
                             break;
                         }
                         case NetProtocol.CMD_VIBRATE:
@@ -170,26 +173,24 @@ public class CommandController {
                     switch (cmd.first) {
                         case CHAT:
                             String msg = (String) cmd.second;
-                            int len = msg.length();
-                            if (len > NetProtocol.MAX_CHAT_LEN) {
+                            byte[] msgBytes;
+                            try {
+                                msgBytes = FrameCodec.encodeString(msg, NetProtocol.MAX_CHAT_LEN, "chat");
+                            } catch (ProtocolException e) {
                                 Log.e(TAG, "message is too long");
                                 break;
                             }
 
-                            mDao.insert(new ChatEntry(msg, mPairName, true));
-                            mCallback.onChat();
+                            ChatEntry entry = new ChatEntry(msg, mPairName, true);
+                            DbExecutor.execute(() -> {
+                                mDao.insert(entry);
+                                mCallback.onChat();
+                            });
 
-                            mOutput.write(new byte[] { NetProtocol.CMD_CHAT });
-
-                            byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
-                            ByteBuffer buf = ByteBuffer.allocate(2);
-                            buf.putShort((short) msgBytes.length);
-                            mOutput.write(buf.array());
-
-                            mOutput.write(msgBytes);
+                            mOutput.write(FrameCodec.command(NetProtocol.CMD_CHAT, msgBytes));
                             break;
                         case VIBRATE:
-                            mOutput.write(new byte[] { NetProtocol.CMD_VIBRATE });
+                            mOutput.write(FrameCodec.command(NetProtocol.CMD_VIBRATE, new byte[0]));
                             break;
                     }
                 }
@@ -438,6 +439,18 @@ public class CommandController {
         mTransferController.sendFile(file);
     }
 
+    void sendFiles(List<ILocalFile> files) {
+        mTransferController.sendFiles(files);
+    }
+
+    void sendTree(Iterator<ILocalFile> files) {
+        mTransferController.sendTree(files);
+    }
+
+    void setCompression(boolean compress) {
+        mTransferController.setCompression(compress);
+    }
+
     void setDevName(String devName) {
         mDevName = devName;
     }
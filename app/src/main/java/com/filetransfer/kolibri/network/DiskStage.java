@@ -0,0 +1,200 @@
+package com.filetransfer.kolibri.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+// a bounded ring of buffers between a handler and the disk. the handler moves bytes between its socket and the ring
+// on its loop, the jobs reading or writing the buffers run on the disk workers, one at a time and in order per stage.
+// slow storage then only drains the ring, the handler stops selecting while no buffer is free or ready
+public class DiskStage {
+    private static final int MAX_SLOTS = 8;
+    // at least two blocks of the largest size, so one can be on the disk while the other is on the wire
+    private static final int MAX_RING_BYTES = 2 * NetProtocol.MAX_FILE_BLK_SIZE;
+    // a stage runs at most one job at a time, so this grows with the busy stages only. a source that reads slowly,
+    // e.g. a content provider streaming from the cloud, must not hold up the disk jobs of other transfers
+    private static final ExecutorService sWorkers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "disk");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public abstract static class Job {
+        // on a disk worker
+        protected abstract void run(ByteBuffer buf) throws IOException;
+
+        // back on the loop, the buffer stays taken until it is released
+        protected abstract void done(ByteBuffer buf);
+    }
+
+    private static class Pending {
+        final ByteBuffer buf;
+        final Job job;
+
+        Pending(ByteBuffer buf, Job job) {
+            this.buf = buf;
+            this.job = job;
+        }
+    }
+
+    private final Executor mLoop;
+    private final Consumer<IOException> mOnFailure;
+    // loop thread only
+    private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<>();
+    private int mTaken = 0;
+    private long mTakenBytes = 0;
+    // guarded by mQueue
+    private final ArrayDeque<Pending> mQueue = new ArrayDeque<>();
+    private boolean mRunning = false;
+    private boolean mClosed = false;
+    private boolean mFailed = false;
+    private Runnable mOnIdle;
+
+    // jobs complete on loop, a failed one is reported there instead and stops the stage
+    public DiskStage(Executor loop, Consumer<IOException> onFailure) {
+        mLoop = loop;
+        mOnFailure = onFailure;
+    }
+
+    // one-off disk work that belongs to no stage
+    public static void background(Runnable task) {
+        sWorkers.execute(task);
+    }
+
+    // a buffer with capacity >= size, or null while the ring is full. size 0 only takes a slot, for jobs that bring
+    // their own data
+    public ByteBuffer take(int size) {
+        if (mTaken >= MAX_SLOTS || (mTaken > 0 && mTakenBytes + size > MAX_RING_BYTES)) {
+            return null;
+        }
+        if (size == 0) {
+            ++mTaken;
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer buf = mFree.poll();
+        if (buf != null && buf.capacity() < size) {
+            BufferPool.release(buf);
+            buf = null;
+        }
+        if (buf == null) {
+            buf = BufferPool.acquire(size);
+        }
+        buf.clear();
+        ++mTaken;
+        mTakenBytes += buf.capacity();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        --mTaken;
+        mTakenBytes -= buf.capacity();
+        if (isClosed()) {
+            BufferPool.release(buf);
+        } else if (buf.capacity() > 0) {
+            mFree.push(buf);
+        }
+    }
+
+    public void submit(ByteBuffer buf, Job job) {
+        synchronized (mQueue) {
+            if (mClosed) {
+                return;
+            }
+            mQueue.add(new Pending(buf, job));
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+        sWorkers.execute(this::runNext);
+    }
+
+    // one job per turn, stages share the workers
+    private void runNext() {
+        Pending p;
+        synchronized (mQueue) {
+            p = mClosed || mFailed ? null : mQueue.poll();
+            if (p == null) {
+                mRunning = false;
+                idle();
+                return;
+            }
+        }
+
+        IOException failure = null;
+        try {
+            p.job.run(p.buf);
+        } catch (IOException e) {
+            failure = e;
+        }
+        IOException error = failure;
+        mLoop.execute(() -> complete(p, error));
+
+        synchronized (mQueue) {
+            if (error != null) {
+                mFailed = true;
+            }
+            if (mClosed || mFailed || mQueue.isEmpty()) {
+                mRunning = false;
+                idle();
+                return;
+            }
+        }
+        sWorkers.execute(this::runNext);
+    }
+
+    private void complete(Pending p, IOException error) {
+        if (isClosed()) {
+            // the owner is gone, errors included
+            release(p.buf);
+            return;
+        }
+        if (error != null) {
+            release(p.buf);
+            mOnFailure.accept(error);
+            return;
+        }
+        p.job.done(p.buf);
+    }
+
+    // must hold mQueue
+    private void idle() {
+        if (mClosed && mOnIdle != null) {
+            Runnable onIdle = mOnIdle;
+            mOnIdle = null;
+            onIdle.run();
+        }
+    }
+
+    private boolean isClosed() {
+        synchronized (mQueue) {
+            return mClosed;
+        }
+    }
+
+    // drops the jobs not started yet, onIdle runs once no job is running anymore, e.g. to free what they use
+    public void close(Runnable onIdle) {
+        ArrayList<Pending> dropped;
+        synchronized (mQueue) {
+            mClosed = true;
+            dropped = new ArrayList<>(mQueue);
+            mQueue.clear();
+            mOnIdle = onIdle;
+            if (!mRunning) {
+                idle();
+            }
+        }
+        // their buffers go back to the pool, the running job returns its own through complete()
+        for (Pending p : dropped) {
+            release(p.buf);
+        }
+        while (!mFree.isEmpty()) {
+            BufferPool.release(mFree.poll());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.filetransfer.kolibri.network;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+import android.util.Pair;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// walks a document tree depth first, listing a directory only when the files before it have been taken
+// so that a huge tree is never held in memory. names of the files are paths relative to the parent of the tree root
+public class DocumentTreeWalker implements Iterator<ILocalFile> {
+    private static final String TAG = DocumentTreeWalker.class.getSimpleName();
+    private static final String[] COLUMNS = {
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_SIZE
+    };
+    private final ContentResolver mResolver;
+    private final Uri mTreeUri;
+    // directories still to be listed: document id, relative path
+    private final ArrayDeque<Pair<String, String>> mDirs = new ArrayDeque<>();
+    private final ArrayDeque<ILocalFile> mFiles = new ArrayDeque<>();
+
+    public DocumentTreeWalker(ContentResolver resolver, Uri treeUri, String rootName) {
+        mResolver = resolver;
+        mTreeUri = treeUri;
+        mDirs.push(Pair.create(DocumentsContract.getTreeDocumentId(treeUri), rootName));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (mFiles.isEmpty() && !mDirs.isEmpty()) {
+            list(mDirs.pop());
+        }
+        return !mFiles.isEmpty();
+    }
+
+    @Override
+    public ILocalFile next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mFiles.poll();
+    }
+
+    private void list(Pair<String, String> dir) {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(mTreeUri, dir.first);
+        try (Cursor cursor = mResolver.query(childrenUri, COLUMNS, null, null, null)) {
+            if (cursor == null) {
+                Log.w(TAG, "list directory failed, path = " + dir.second);
+                return;
+            }
+            while (cursor.moveToNext()) {
+                String id = cursor.getString(0);
+                String path = dir.second + "/" + cursor.getString(1);
+                if (Document.MIME_TYPE_DIR.equals(cursor.getString(2))) {
+                    mDirs.push(Pair.create(id, path));
+                } else {
+                    Uri uri = DocumentsContract.buildDocumentUriUsingTree(mTreeUri, id);
+                    mFiles.add(new UriLocalFile(mResolver, uri, path, cursor.getLong(3)));
+                }
+            }
+        }
+    }
+}
@@ -3,70 +3,209 @@ package com.filetransfer.kolibri.network;
 import android.os.Handler;
 import android.os.Looper;
 
+import com.filetransfer.kolibri.db.DbExecutor;
 import com.filetransfer.kolibri.db.dao.FileDao;
 import com.filetransfer.kolibri.db.entity.FileEntry;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// the database entry of a file transfer. every write is enqueued on the db writer, the transfer never waits for one.
+// the writer runs them in order, so by the time a later write runs the insert has set the id
 public class FileTaskWrapper {
-    private static final long DB_UPDATE_INTERVAL = 1000;
+    private static final int NOT_STARTED = 0;
+    private static final int RUNNING = 1;
+    private static final int FINISHED = 2;
     private final FileDao mDao;
+    private final ProgressSink mSink;
     private final ITransferCallback mCallback;
     private final String mPairName;
     private final Handler mHandler = new Handler(Looper.getMainLooper());
-    private long mTaskId = -1;
-    private long mSize;
-    private long mTransferred = 0;
-    private long mLastUpdate = 0;
+    // written under the lock, read without it by proceed() and the sink
+    private volatile int mState = NOT_STARTED;
+    // set on the writer once the entry is inserted
+    private volatile long mTaskId = -1;
+    private volatile long mSize;
+    private volatile String mName;
+    // stripes of a file count from different loops, none of them waits for another
+    private final LongAdder mTransferred = new LongAdder();
+    // queued in the sink for the next flush
+    private final AtomicBoolean mDirty = new AtomicBoolean(false);
 
-    public FileTaskWrapper(FileDao dao, ITransferCallback cb, String pairName) {
-        mDao = dao;
+    public FileTaskWrapper(ProgressSink sink, ITransferCallback cb, String pairName) {
+        mDao = sink.dao();
+        mSink = sink;
         mCallback = cb;
         mPairName = pairName;
     }
 
-    public synchronized void start(String name, String path, long size, boolean fromSelf) {
-        if (mTaskId == -2) {
-            // already finished
+    public synchronized void start(String name, String path, long size, boolean fromSelf, long transferId, long fingerprint) {
+        if (mState == FINISHED) {
             return;
         }
+        insert(newEntry(name, path, size, fromSelf, transferId, fingerprint));
+    }
+
+    public FileEntry newEntry(String name, String path, long size, boolean fromSelf, long transferId, long fingerprint) {
         FileEntry e = new FileEntry(name, path, size, mPairName, fromSelf);
-        mSize = size;
-        mTaskId = mDao.insert(e);
-        mHandler.post(mCallback::onNewTask);
+        e.transferId = transferId;
+        e.fingerprint = fingerprint;
+        return e;
     }
 
-    public synchronized boolean proceed(long transferred) {
-        if (mTaskId < 0) {
-            // not started or already finished
+    // starts many tasks with a single insert, a batch of small files would otherwise spend most of its time in the database
+    public static void startAll(List<FileTaskWrapper> tasks, List<FileEntry> entries) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        ArrayList<FileTaskWrapper> started = new ArrayList<>();
+        ArrayList<FileEntry> startedEntries = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); ++i) {
+            FileTaskWrapper task = tasks.get(i);
+            synchronized (task) {
+                if (task.mState == FINISHED) {
+                    // finished before it could start, e.g. while it was prepared off the loop
+                    continue;
+                }
+                task.mSize = entries.get(i).size;
+                task.mName = entries.get(i).name;
+                task.mState = RUNNING;
+            }
+            started.add(task);
+            startedEntries.add(entries.get(i));
+        }
+        if (started.isEmpty()) {
+            return;
+        }
+        FileTaskWrapper first = started.get(0);
+        DbExecutor.execute(() -> {
+            long[] ids = first.mDao.insertAll(startedEntries);
+            for (int i = 0; i < ids.length; ++i) {
+                started.get(i).inserted(ids[i]);
+            }
+            first.mHandler.post(first.mCallback::onNewTask);
+        });
+    }
+
+    // continues the task of a failed entry from a checkpoint, in the row of that entry so the list keeps a single one
+    public synchronized void resume(FileEntry failed, long transferred) {
+        if (mState == FINISHED) {
+            return;
+        }
+        mSize = failed.size;
+        mName = failed.name;
+        mState = RUNNING;
+        mTransferred.reset();
+        mTransferred.add(transferred);
+        DbExecutor.execute(() -> {
+            mDao.updateTransferredById(failed.id, transferred);
+            mDao.updateStatusById(failed.id, FileEntry.STATUS_RUNNING);
+            inserted(failed.id);
+            mHandler.post(mCallback::onNewTask);
+        });
+    }
+
+    // counts in memory only, the sink stores the count with its next flush
+    public boolean proceed(long transferred) {
+        if (mState != RUNNING) {
             return false;
         }
-        mTransferred += transferred;
+        mTransferred.add(transferred);
+        // before the insert ran there is nothing to store, inserted() queues the count instead
+        if (mTaskId >= 0 && mDirty.compareAndSet(false, true)) {
+            mSink.markDirty(this);
+        }
+        return mTransferred.sum() >= mSize;
+    }
 
-        long time = System.currentTimeMillis();
-        if (time - mLastUpdate > DB_UPDATE_INTERVAL) {
-            mDao.updateTransferredById(mTaskId, mTransferred);
-            mLastUpdate = time;
+    // moves the checkpoint back, e.g. to the first range that failed verification
+    public synchronized void rewind(long transferred) {
+        long current = mTransferred.sum();
+        if (transferred < current) {
+            mTransferred.add(transferred - current);
         }
+    }
 
-        return mTransferred >= mSize;
+    // the file ended up under another name than the one recorded
+    public synchronized void rename(String name) {
+        if (mState != RUNNING) {
+            return;
+        }
+        mName = name;
+        DbExecutor.execute(() -> mDao.updateNameById(mTaskId, name));
     }
 
-    public synchronized long remaining() {
-        if (mTaskId < 0) {
+    public long remaining() {
+        if (mState != RUNNING) {
             // not started or already finished
             return 0;
         }
-        return Math.max(0, mSize - mTransferred);
+        return Math.max(0, mSize - mTransferred.sum());
     }
 
-    public synchronized long size() {
+    public long size() {
         return mSize;
     }
 
     public synchronized void finish(boolean completed) {
-        if (mTaskId < 0) {
+        if (mState == NOT_STARTED) {
+            // never recorded, and never will be
+            mState = FINISHED;
+            return;
+        }
+        if (mState != RUNNING) {
             return;
         }
-        mDao.updateStatusById(mTaskId, completed ? FileEntry.STATUS_COMPLETED : FileEntry.STATUS_FAILED);
-        mTaskId = -2;
+        mState = FINISHED;
+        mSink.finish(this, mTransferred.sum(), completed ? FileEntry.STATUS_COMPLETED : FileEntry.STATUS_FAILED);
+    }
+
+    // the id to store the progress of, -1 once the task finished. clears the mark so the next proceed() queues it again
+    long takeDirty() {
+        mDirty.set(false);
+        return mState == RUNNING ? mTaskId : -1;
+    }
+
+    // the id of the entry, on the writer
+    long id() {
+        return mTaskId;
+    }
+
+    String name() {
+        return mName;
+    }
+
+    long transferred() {
+        return mTransferred.sum();
+    }
+
+    // null unless running
+    TaskProgress progress() {
+        long id = mTaskId;
+        if (id < 0 || mState != RUNNING) {
+            return null;
+        }
+        return new TaskProgress(id, mName, mSize, Math.min(mTransferred.sum(), mSize), FileEntry.STATUS_RUNNING);
+    }
+
+    private void insert(FileEntry e) {
+        mSize = e.size;
+        mName = e.name;
+        mState = RUNNING;
+        DbExecutor.execute(() -> {
+            inserted(mDao.insert(e));
+            mHandler.post(mCallback::onNewTask);
+        });
+    }
+
+    // on the writer, once the entry has a row. counts taken before the id was known get stored with the next flush
+    private void inserted(long id) {
+        mTaskId = id;
+        mSink.started(id, this);
+        if (mDirty.compareAndSet(false, true)) {
+            mSink.markDirty(this);
+        }
     }
 }
@@ -0,0 +1,44 @@
+package com.filetransfer.kolibri.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// size plus a few content samples, cheap enough to compute for every send and for every local file that may match one
+public class Fingerprint {
+    // bytes hashed at the head, middle and tail of a file
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private Fingerprint() {}
+
+    // basePos is the channel position where the file content starts, the channel is only read positionally
+    public static long compute(FileChannel channel, long basePos, long size) throws IOException {
+        MessageDigest md = newDigest();
+        md.update(ByteBuffer.allocate(8).putLong(0, size));
+
+        ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+        long[] samplePos = { 0, size / 2, Math.max(0, size - SAMPLE_SIZE) };
+        for (long pos : samplePos) {
+            sample.clear();
+            sample.limit((int) Math.min(SAMPLE_SIZE, size - pos));
+            while (sample.hasRemaining()) {
+                if (channel.read(sample, basePos + pos + sample.position()) == -1) {
+                    throw new IOException("file truncated");
+                }
+            }
+            sample.flip();
+            md.update(sample);
+        }
+        return ByteBuffer.wrap(md.digest()).getLong();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.filetransfer.kolibri.network;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// the framing shared by the control and the transfer channels. every length taken off the wire is checked against its
+// limit before anything is sized by it, so a malformed frame is turned away where it is read
+public final class FrameCodec {
+    // command, payload length
+    public static final int COMMAND_HEADER_LEN = 1 + 2;
+
+    private FrameCodec() {
+    }
+
+    public static void putHandshake(ByteBuffer buf) {
+        buf.put(NetProtocol.HANDSHAKE_HEADER);
+    }
+
+    // buf holds the HANDSHAKE_HEADER.length bytes received, a peer speaking another protocol version is refused
+    public static void checkHandshake(ByteBuffer buf) throws ProtocolException {
+        byte[] header = NetProtocol.HANDSHAKE_HEADER;
+        for (int i = 0; i < header.length - 1; ++i) {
+            if (buf.get() != header[i]) {
+                throw new ProtocolException("handshake failed, wrong header format");
+            }
+        }
+        int version = buf.get() & 0xFF;
+        if (version != NetProtocol.PROTOCOL_VERSION) {
+            throw new ProtocolException("peer speaks protocol version " + version + ", expected " + NetProtocol.PROTOCOL_VERSION);
+        }
+    }
+
+    public static int getLength(ByteBuffer buf, long min, long max, String what) throws ProtocolException {
+        return checkLength(buf.getInt(), min, max, what);
+    }
+
+    public static int checkLength(long len, long min, long max, String what) throws ProtocolException {
+        if (len < min || len > max) {
+            throw new ProtocolException("bad " + what + " length " + len);
+        }
+        return (int) len;
+    }
+
+    // the utf-8 bytes of s, there must not be more than max of them
+    public static byte[] encodeString(String s, int max, String what) throws ProtocolException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        checkLength(bytes.length, 0, max, what);
+        return bytes;
+    }
+
+    public static String getString(ByteBuffer buf, int len) {
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // a control command with its payload, written in one piece
+    public static byte[] command(byte cmd, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(COMMAND_HEADER_LEN + payload.length);
+        buf.put(cmd);
+        buf.putShort((short) payload.length);
+        buf.put(payload);
+        return buf.array();
+    }
+
+    // the payload length from a command header, after the command itself was taken
+    public static int getCommandLength(ByteBuffer buf) throws ProtocolException {
+        return checkLength(buf.getShort() & 0xFFFF, 0, NetProtocol.MAX_COMMAND_LEN, "command");
+    }
+}
@@ -1,10 +1,21 @@
 package com.filetransfer.kolibri.network;
 
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 
 public interface ILocalFile {
     String name();
     long size();
-    FileInputStream stream();
+    // opened on first use
+    FileInputStream stream() throws IOException;
+    // in-order reads of a stream that cannot seek
+    default ReadableByteChannel sequential() throws IOException {
+        return stream().getChannel();
+    }
+    // a regular local file whose ranges may be mapped instead of read
+    default boolean mappable() {
+        return false;
+    }
     void close();
 }
@@ -0,0 +1,193 @@
+package com.filetransfer.kolibri.network;
+
+import static com.filetransfer.kolibri.misc.Util.closeSilently;
+
+import android.util.Log;
+
+import com.filetransfer.kolibri.db.entity.FileEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+public class IncomingFile extends StripeGroup {
+    private static final String TAG = IncomingFile.class.getSimpleName();
+    private final IncomingFileRegistry mRegistry;
+    private final long mId;
+    private final long mTransferId;
+    private File mFile;
+    private RandomAccessFile mRaf;
+    // where the bytes go until the file is complete, null when nothing is written
+    private PartFile mPart;
+    // a local file that may hold the same content, the target is only created once it has been compared
+    private File mCandidate;
+    private RandomAccessFile mCandidateRaf;
+    private FileEntry mDeferredEntry;
+    // the disk had no room for it, nothing is written
+    private boolean mNoSpace = false;
+    // bytes of the file the file system could not reserve up front
+    private long mUnreserved = 0;
+    // guarded by this
+    private boolean mClosed = false;
+
+    IncomingFile(IncomingFileRegistry registry, long id, long transferId, File file, RandomAccessFile raf, PartFile part, FileTaskWrapper task, int stripeCount) {
+        super(task, stripeCount);
+        mRegistry = registry;
+        mId = id;
+        mTransferId = transferId;
+        mFile = file;
+        mRaf = raf;
+        mPart = part;
+    }
+
+    public long id() {
+        return mId;
+    }
+
+    public long transferId() {
+        return mTransferId;
+    }
+
+    public File file() {
+        return mFile;
+    }
+
+    // bytes at the head of the range [start, end) that survived an earlier attempt
+    public long resumeOffset(long start, long end) {
+        return mPart == null ? 0 : mPart.validLength(start, end);
+    }
+
+    // checksums of the segments of the range that survived, in order
+    public int[] resumedChecksums(long start, long end) {
+        return mPart == null ? new int[0] : mPart.checksums(start, end);
+    }
+
+    public void track(long start, long end, long valid, RangeChecksum checksum) {
+        if (mPart != null) {
+            mPart.track(start, end, valid, checksum);
+        }
+    }
+
+    // on a disk worker, after the write ending at valid
+    public void setValid(long start, long valid) {
+        if (mPart != null) {
+            mPart.setValid(start, valid);
+        }
+    }
+
+    public void rewind(long start, long valid) {
+        if (mPart != null) {
+            mPart.rewind(start, valid);
+        }
+    }
+
+    // records what is written so far, best effort. on a disk worker
+    public void checkpoint() {
+        if (mPart == null || mRaf == null) {
+            return;
+        }
+        try {
+            mPart.save(mRaf.getChannel());
+        } catch (IOException e) {
+            Log.w(TAG, "cannot checkpoint " + mFile.getName());
+            e.printStackTrace();
+        }
+    }
+
+    PartFile part() {
+        return mPart;
+    }
+
+    public FileChannel channel() {
+        return mRaf.getChannel();
+    }
+
+    public File candidate() {
+        return mCandidate;
+    }
+
+    public FileChannel candidateChannel() {
+        return mCandidateRaf.getChannel();
+    }
+
+    public boolean noSpace() {
+        return mNoSpace;
+    }
+
+    void setNoSpace() {
+        mNoSpace = true;
+    }
+
+    synchronized long unreserved() {
+        return mUnreserved;
+    }
+
+    void setUnreserved(long unreserved) {
+        mUnreserved = unreserved;
+    }
+
+    void setCandidate(File candidate, RandomAccessFile raf, FileEntry deferredEntry) {
+        mCandidate = candidate;
+        mCandidateRaf = raf;
+        mDeferredEntry = deferredEntry;
+    }
+
+    synchronized FileEntry deferredEntry() {
+        return mClosed ? null : mDeferredEntry;
+    }
+
+    // raf and part are null when the candidate is kept as it is. on a disk worker, false if the file finished meanwhile
+    // and nothing is taken over
+    synchronized boolean adopt(File file, RandomAccessFile raf, PartFile part, long unreserved) {
+        if (mClosed) {
+            return false;
+        }
+        closeSilently(mCandidateRaf);
+        mCandidate = null;
+        mCandidateRaf = null;
+        mDeferredEntry = null;
+        mFile = file;
+        mRaf = raf;
+        mPart = part;
+        mUnreserved = unreserved;
+        return true;
+    }
+
+    void setFile(File file) {
+        mFile = file;
+    }
+
+    @Override
+    protected void onFinished(boolean completed) {
+        synchronized (this) {
+            // an adopt still running leaves the file alone from here on
+            mClosed = true;
+        }
+        mRegistry.remove(this);
+        if (mCandidateRaf != null) {
+            closeSilently(mCandidateRaf);
+        }
+        if (mPart != null && mRaf != null) {
+            // flushing the file may take a while, it is left to a disk worker
+            DiskStage.background(() -> {
+                boolean published = completed && mRegistry.publish(this, mRaf.getChannel());
+                boolean kept = !published && mPart.resumable();
+                if (kept) {
+                    checkpoint();
+                }
+                closeSilently(mRaf);
+                if (!published && !kept) {
+                    // no later attempt can pick it up, it would only take space
+                    mPart.discard();
+                }
+                mTask.finish(published);
+            });
+            return;
+        }
+        if (mRaf != null) {
+            closeSilently(mRaf);
+        }
+        mTask.finish(completed);
+    }
+}
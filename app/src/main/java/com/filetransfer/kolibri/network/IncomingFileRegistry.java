@@ -0,0 +1,483 @@
+package com.filetransfer.kolibri.network;
+
+import static com.filetransfer.kolibri.misc.Util.closeSilently;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.filetransfer.kolibri.db.DbExecutor;
+import com.filetransfer.kolibri.db.dao.FileDao;
+import com.filetransfer.kolibri.db.entity.FileEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// maps transfer ids to the files being received, so that every stripe of a file lands in the same one.
+// stripes may arrive on different loops
+public class IncomingFileRegistry {
+    private static final String TAG = IncomingFileRegistry.class.getSimpleName();
+    // left free for everything else on the device
+    private static final long MIN_FREE_SPACE = 32L * 1024 * 1024;
+
+    // what the history knows about an incoming file, read before any disk work
+    private static class Lookup {
+        // an earlier attempt that may be resumed
+        FileEntry failed;
+        // earlier downloads of the same content, null if the file is not looked for locally
+        FileEntry[] received;
+    }
+
+    private final File mBaseDir;
+    private final FileDao mDao;
+    private final ProgressSink mProgress;
+    private final ITransferCallback mCallback;
+    private final String mPairName;
+    // by file id, complete once the file is opened
+    private final HashMap<Long, CompletableFuture<IncomingFile>> mFiles = new HashMap<>();
+    // the striped file that ended last under a transfer id, by transfer id. a resend of it comes with a new file id
+    private final HashMap<Long, Long> mEnded = new HashMap<>();
+    private final NameAllocator mNames = new NameAllocator();
+    // promised to open files the file system could only extend sparsely, free space does not account for it yet
+    private long mUnreserved = 0;
+    private boolean mClosed = false;
+
+    IncomingFileRegistry(File baseDir, ProgressSink progress, ITransferCallback callback, String pairName) {
+        mBaseDir = baseDir;
+        mDao = progress.dao();
+        mProgress = progress;
+        mCallback = callback;
+        mPairName = pairName;
+    }
+
+    // the files the manifest entries belong to, creating and preallocating those seen for the first time. that takes
+    // lookups and disk work, it runs on a disk worker and only the map is touched under the lock. files the disk has
+    // no room for are returned as well, see IncomingFile.noSpace()
+    public CompletableFuture<IncomingFile[]> openAll(List<ManifestEntry> entries) {
+        ArrayList<CompletableFuture<IncomingFile>> all = new ArrayList<>(entries.size());
+        ArrayList<ManifestEntry> claimed = new ArrayList<>();
+        ArrayList<CompletableFuture<IncomingFile>> opening = new ArrayList<>();
+        synchronized (this) {
+            if (mClosed) {
+                return failed(new IOException("receiving stopped"));
+            }
+            for (ManifestEntry entry : entries) {
+                Long ended = mEnded.get(entry.transferId);
+                if (ended != null && ended == entry.id && !mFiles.containsKey(entry.id)) {
+                    // a stripe of a file that already failed or finished, it must not start the file over
+                    return failed(new IOException("late stripe of " + entry.name));
+                }
+            }
+            for (ManifestEntry entry : entries) {
+                CompletableFuture<IncomingFile> incoming = mFiles.get(entry.id);
+                if (incoming == null) {
+                    // other stripes of the file wait for this one
+                    incoming = new CompletableFuture<>();
+                    mFiles.put(entry.id, incoming);
+                    claimed.add(entry);
+                    opening.add(incoming);
+                }
+                all.add(incoming);
+            }
+        }
+        if (!claimed.isEmpty()) {
+            // what the history knows about them is read first, the disk work follows on a disk worker
+            DbExecutor.query(() -> lookUp(claimed, mDao))
+                    .whenCompleteAsync((lookups, e) -> {
+                        if (lookups == null) {
+                            fail(claimed, opening, e);
+                            return;
+                        }
+                        openClaimed(claimed, lookups, opening);
+                    }, DiskStage::background);
+        }
+
+        CompletableFuture<IncomingFile[]> result = new CompletableFuture<>();
+        CompletableFuture.allOf(all.toArray(new CompletableFuture[0])).whenComplete((v, e) -> {
+            if (e == null) {
+                IncomingFile[] files = new IncomingFile[all.size()];
+                for (int i = 0; i < files.length; ++i) {
+                    files[i] = all.get(i).join();
+                }
+                result.complete(files);
+                return;
+            }
+            // the files opened here would wait for this stripe forever
+            for (CompletableFuture<IncomingFile> incoming : opening) {
+                if (!incoming.isCompletedExceptionally()) {
+                    incoming.join().abort();
+                }
+            }
+            result.completeExceptionally(e);
+        });
+        return result;
+    }
+
+    private static CompletableFuture<IncomingFile[]> failed(IOException e) {
+        CompletableFuture<IncomingFile[]> files = new CompletableFuture<>();
+        files.completeExceptionally(e);
+        return files;
+    }
+
+    // on the db readers
+    private static Lookup[] lookUp(List<ManifestEntry> entries, FileDao dao) {
+        Lookup[] lookups = new Lookup[entries.size()];
+        for (int i = 0; i < lookups.length; ++i) {
+            ManifestEntry entry = entries.get(i);
+            Lookup lookup = new Lookup();
+            if (entry.fingerprint != 0) {
+                lookup.failed = dao.findFailedByTransferId(entry.transferId, false);
+                if (entry.stripeCount == 1 && entry.size > 0) {
+                    lookup.received = dao.listReceivedByFingerprint(entry.fingerprint, entry.size);
+                }
+            }
+            lookups[i] = lookup;
+        }
+        return lookups;
+    }
+
+    // on a disk worker
+    private void openClaimed(List<ManifestEntry> entries, Lookup[] lookups, List<CompletableFuture<IncomingFile>> opening) {
+        ArrayList<IncomingFile> created = new ArrayList<>();
+        ArrayList<FileTaskWrapper> newTasks = new ArrayList<>();
+        ArrayList<FileEntry> newEntries = new ArrayList<>();
+        try {
+            for (int i = 0; i < entries.size(); ++i) {
+                created.add(open(entries.get(i), lookups[i], newTasks, newEntries));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (IncomingFile incoming : created) {
+                incoming.abort();
+            }
+            fail(entries, opening, e);
+            return;
+        }
+        FileTaskWrapper.startAll(newTasks, newEntries);
+        for (int i = 0; i < created.size(); ++i) {
+            opening.get(i).complete(created.get(i));
+        }
+    }
+
+    private void fail(List<ManifestEntry> entries, List<CompletableFuture<IncomingFile>> opening, Throwable e) {
+        synchronized (this) {
+            for (ManifestEntry entry : entries) {
+                mFiles.remove(entry.id);
+            }
+        }
+        for (CompletableFuture<IncomingFile> incoming : opening) {
+            incoming.completeExceptionally(e);
+        }
+    }
+
+    private IncomingFile open(ManifestEntry entry, Lookup lookup, List<FileTaskWrapper> newTasks, List<FileEntry> newEntries) throws IOException {
+        File file;
+        PartFile part;
+        FileEntry failed = lookup.failed;
+        if (failed != null && failed.fingerprint == entry.fingerprint && failed.size == entry.size
+                && PartFile.partOf(new File(failed.path, failed.name)).isFile()) {
+            file = new File(failed.path, failed.name);
+            // only what the checkpoint vouches for is kept, the count in the history may be ahead of the disk
+            part = new PartFile(file, entry.transferId, entry.fingerprint, entry.size);
+            part.load();
+        } else {
+            failed = null;
+            int sep = entry.name.lastIndexOf('/');
+            File dir = sep == -1 ? mBaseDir : resolveDir(entry.name.substring(0, sep));
+            String fileName = entry.name.substring(sep + 1);
+            if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
+                throw new IOException("bad file name " + entry.name);
+            }
+            file = new File(dir, fileName);
+            File candidate = lookup.received != null ? findCandidate(entry, file, lookup.received) : null;
+            if (candidate != null) {
+                return openDeferred(entry, file, candidate);
+            }
+            file = mNames.allocate(file);
+            part = new PartFile(file, entry.transferId, entry.fingerprint, entry.size);
+        }
+
+        RandomAccessFile raf = null;
+        long unreserved = 0;
+        long needed = entry.size - (failed != null ? Math.min(part.file().length(), entry.size) : 0);
+        long claimed = 0;
+        if (claim(file.getParentFile(), needed)) {
+            claimed = needed;
+            try {
+                raf = new RandomAccessFile(part.file(), "rw");
+                unreserved = reserve(raf, entry.size, needed);
+            } catch (IOException e) {
+                if (raf != null) {
+                    closeSilently(raf);
+                }
+                synchronized (this) {
+                    mUnreserved -= claimed;
+                }
+                throw e;
+            }
+            if (unreserved == -1) {
+                closeSilently(raf);
+                raf = null;
+                unreserved = 0;
+            }
+        }
+        if (raf == null) {
+            Log.w(TAG, "no space for " + entry.size + " bytes of " + file.getName());
+            // a part kept from an earlier attempt goes as well, the disk needs its blocks more
+            part.discard();
+        }
+
+        FileTaskWrapper task = new FileTaskWrapper(mProgress, mCallback, mPairName);
+        if (failed != null) {
+            task.resume(failed, raf == null ? 0 : part.validTotal());
+        } else {
+            // inserted together with the rest of the manifest
+            newTasks.add(task);
+            newEntries.add(task.newEntry(file.getName(), file.getParentFile().getAbsolutePath(), entry.size, false, entry.transferId, entry.fingerprint));
+        }
+        IncomingFile incoming = new IncomingFile(this, entry.id, entry.transferId, file, raf, raf == null ? null : part, task, entry.stripeCount);
+        if (raf == null) {
+            incoming.setNoSpace();
+        }
+        incoming.setUnreserved(unreserved);
+        synchronized (this) {
+            // what reserve() allocated is taken from the disk now, only the rest stays promised
+            mUnreserved += unreserved - claimed;
+        }
+        return incoming;
+    }
+
+    // promises needed bytes of the disk to a file until reserve() took them. checked and counted in one go, so files
+    // of concurrent manifests cannot both be promised the same free space
+    private synchronized boolean claim(File dir, long needed) {
+        if (dir.getUsableSpace() - mUnreserved < needed + MIN_FREE_SPACE) {
+            return false;
+        }
+        mUnreserved += needed;
+        return true;
+    }
+
+    // allocates the blocks of the whole file up front, so the disk cannot run out midway and stripes writing at their
+    // own offsets do not fragment it. returns the bytes that could not be reserved, -1 if the disk is full
+    private static long reserve(RandomAccessFile raf, long size, long needed) throws IOException {
+        try {
+            if (size > 0) {
+                Os.posix_fallocate(raf.getFD(), 0, size);
+            }
+            needed = 0;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                return -1;
+            }
+            // not supported by every file system, the file is only extended sparsely then
+        }
+        raf.setLength(size);
+        return needed;
+    }
+
+    // the local hash index: the file already at the target path, then earlier downloads of the same content
+    private static File findCandidate(ManifestEntry entry, File target, FileEntry[] received) {
+        if (matches(target, entry)) {
+            return target;
+        }
+        for (FileEntry e : received) {
+            File file = new File(e.path, e.name);
+            if (!file.equals(target) && matches(file, entry)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    // the history may be stale, look at the file itself
+    private static boolean matches(File file, ManifestEntry entry) {
+        if (!file.isFile() || file.length() != entry.size) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return Fingerprint.compute(raf.getChannel(), 0, entry.size) == entry.fingerprint;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // nothing is created or recorded until the candidate has been compared with the sender's checksums, see adoptAll()
+    private IncomingFile openDeferred(ManifestEntry entry, File target, File candidate) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(candidate, "r");
+        FileTaskWrapper task = new FileTaskWrapper(mProgress, mCallback, mPairName);
+        IncomingFile incoming = new IncomingFile(this, entry.id, entry.transferId, target, null, null, task, entry.stripeCount);
+        incoming.setCandidate(candidate, raf,
+                task.newEntry(target.getName(), null, entry.size, false, entry.transferId, entry.fingerprint));
+        return incoming;
+    }
+
+    // settles files opened with a candidate, the first matched[i] bytes are taken from it. a candidate that matched
+    // completely and already sits at the target path is kept as it is, anything else gets a new file. the copy may
+    // take a while, it runs on a disk worker
+    public CompletableFuture<Void> adoptAll(List<IncomingFile> files, long[] matched) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                adopt(files, matched);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, DiskStage::background);
+    }
+
+    private void adopt(List<IncomingFile> files, long[] matched) throws IOException {
+        ArrayList<IncomingFile> adopted = new ArrayList<>();
+        ArrayList<FileTaskWrapper> tasks = new ArrayList<>();
+        ArrayList<FileEntry> entries = new ArrayList<>();
+        ArrayList<Long> counts = new ArrayList<>();
+        for (int i = 0; i < files.size(); ++i) {
+            IncomingFile incoming = files.get(i);
+            FileEntry e = incoming.deferredEntry();
+            if (e == null) {
+                // finished meanwhile
+                continue;
+            }
+            File file = incoming.file();
+            RandomAccessFile raf = null;
+            PartFile part = null;
+            long unreserved = 0;
+            if (matched[i] < e.size || !file.equals(incoming.candidate())) {
+                file = mNames.allocate(file);
+                part = new PartFile(file, e.transferId, e.fingerprint, e.size);
+                raf = new RandomAccessFile(part.file(), "rw");
+                try {
+                    unreserved = reserve(raf, e.size, e.size);
+                    if (unreserved == -1) {
+                        throw new IOException("no space for " + file.getName());
+                    }
+                    copyHead(incoming.candidateChannel(), raf.getChannel(), matched[i]);
+                } catch (IOException ex) {
+                    raf.close();
+                    part.file().delete();
+                    throw ex;
+                }
+            }
+            synchronized (this) {
+                mUnreserved += unreserved;
+            }
+            if (!incoming.adopt(file, raf, part, unreserved)) {
+                // the transfer ended while the copy was made
+                synchronized (this) {
+                    mUnreserved -= unreserved;
+                }
+                if (raf != null) {
+                    raf.close();
+                    part.file().delete();
+                }
+                continue;
+            }
+            e.name = file.getName();
+            e.path = file.getParentFile().getAbsolutePath();
+            adopted.add(incoming);
+            tasks.add(incoming.task());
+            entries.add(e);
+            counts.add(matched[i]);
+        }
+        FileTaskWrapper.startAll(tasks, entries);
+        for (int i = 0; i < adopted.size(); ++i) {
+            adopted.get(i).task().proceed(counts.get(i));
+        }
+    }
+
+    private static void copyHead(FileChannel src, FileChannel dst, long len) throws IOException {
+        src.position(0);
+        long pos = 0;
+        while (pos < len) {
+            long n = dst.transferFrom(src, pos, len - pos);
+            if (n == 0) {
+                throw new IOException("local copy truncated at " + pos);
+            }
+            pos += n;
+        }
+    }
+
+    // directories of a tree transfer are recreated under the base directory, never outside of it
+    private File resolveDir(String relativePath) throws IOException {
+        File dir = mBaseDir;
+        for (String part : relativePath.split("/")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            if (part.equals(".") || part.equals("..")) {
+                throw new IOException("bad path " + relativePath);
+            }
+            dir = new File(dir, part);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        return dir;
+    }
+
+    // moves a completed file into place, under another name if one has shown up at its target meanwhile
+    boolean publish(IncomingFile incoming, FileChannel data) {
+        try {
+            // the content must be on the disk before its name is
+            data.force(false);
+            synchronized (this) {
+                File target = incoming.file();
+                if (target.exists()) {
+                    target = mNames.allocate(target);
+                    incoming.setFile(target);
+                    incoming.task().rename(target.getName());
+                }
+                incoming.part().publish(target);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot move " + incoming.part().file() + " into place");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    synchronized void remove(IncomingFile incoming) {
+        mFiles.remove(incoming.id());
+        mUnreserved -= incoming.unreserved();
+        if (incoming.stripeCount() > 1) {
+            mEnded.put(incoming.transferId(), incoming.id());
+        }
+    }
+
+    // the parts no unfinished entry refers to anymore can never be resumed, they only take space. those of transfers
+    // started from now on are left alone
+    void sweep() {
+        long before = System.currentTimeMillis();
+        DbExecutor.query(mDao::listUnfinishedReceived)
+                .thenAcceptAsync(entries -> {
+                    HashSet<File> keep = new HashSet<>();
+                    for (FileEntry e : entries) {
+                        keep.add(new File(e.path, e.name));
+                    }
+                    PartFile.sweep(mBaseDir, keep, before);
+                }, DiskStage::background)
+                .exceptionally(e -> {
+                    Log.w(TAG, "cannot sweep " + mBaseDir, e);
+                    return null;
+                });
+    }
+
+    // fails the files still waiting for stripes that will never arrive, those still being opened once they are
+    void abortAll() {
+        ArrayList<CompletableFuture<IncomingFile>> files;
+        synchronized (this) {
+            mClosed = true;
+            files = new ArrayList<>(mFiles.values());
+        }
+        for (CompletableFuture<IncomingFile> incoming : files) {
+            incoming.thenAccept(IncomingFile::abort);
+        }
+    }
+}
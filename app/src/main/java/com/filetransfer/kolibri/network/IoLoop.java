@@ -0,0 +1,183 @@
+package com.filetransfer.kolibri.network;
+
+import static com.filetransfer.kolibri.misc.Util.closeSilently;
+
+import android.util.Log;
+
+import com.filetransfer.kolibri.network.handler.ITransferHandler;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+// one selector thread of the transfer pool. handlers registered here are only ever touched from its thread,
+// other threads reach them through execute()
+class IoLoop implements Runnable, Executor {
+    private static final String TAG = IoLoop.class.getSimpleName();
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final TransferMonitor mMonitor;
+    // loop thread only
+    private final HashSet<ITransferHandler> mHandlers = new HashSet<>();
+    // guarded by this
+    private final ArrayList<ITransferHandler> mNewHandlers = new ArrayList<>();
+    private final ArrayList<Runnable> mTasks = new ArrayList<>();
+    private boolean mStopped = false;
+    // connections registered with the selector as of the last round
+    private volatile int mKeyCount = 0;
+
+    IoLoop(String name, TransferMonitor monitor) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this, name);
+        mMonitor = monitor;
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    // the handler must have been created for this loop
+    void register(ITransferHandler handler) {
+        synchronized (this) {
+            if (!mStopped) {
+                mMonitor.add(handler.metrics());
+                mNewHandlers.add(handler);
+                mSelector.wakeup();
+                return;
+            }
+        }
+        // no loop thread will ever touch it
+        handler.abort();
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        if (mStopped) {
+            return;
+        }
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    // the loop aborts its handlers on its own thread and exits
+    synchronized void shutdown() {
+        mStopped = true;
+        mSelector.wakeup();
+    }
+
+    void join() {
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // new handlers go to the loop with the least connections
+    synchronized int load() {
+        return mKeyCount + mNewHandlers.size();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                mSelector.select();
+
+                ArrayList<ITransferHandler> newHandlers;
+                ArrayList<Runnable> tasks;
+                synchronized (this) {
+                    if (mStopped) {
+                        break;
+                    }
+                    newHandlers = new ArrayList<>(mNewHandlers);
+                    mNewHandlers.clear();
+                    tasks = new ArrayList<>(mTasks);
+                    mTasks.clear();
+                }
+
+                for (ITransferHandler handler : newHandlers) {
+                    try {
+                        if (handler.register(mSelector, () -> mHandlers.remove(handler))) {
+                            mHandlers.add(handler);
+                        }
+                    } catch (RuntimeException e) {
+                        fail(handler, e);
+                    }
+                }
+                for (Runnable task : tasks) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // handlers guard their own tasks, whatever gets here has no owner to abort
+                        Log.e(TAG, "loop task failed");
+                        e.printStackTrace();
+                    }
+                }
+
+                Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    ITransferHandler handler = (ITransferHandler) key.attachment();
+                    long start = System.nanoTime();
+                    boolean keep;
+                    try {
+                        keep = handler.onSelected(key);
+                    } catch (RuntimeException e) {
+                        fail(handler, e);
+                        continue;
+                    }
+                    handler.metrics().onSelected(System.nanoTime() - start);
+                    if (!keep) {
+                        mHandlers.remove(handler);
+                    }
+                }
+                mKeyCount = mSelector.keys().size();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "loop may be unexpected stopped");
+            e.printStackTrace();
+        } finally {
+            ArrayList<ITransferHandler> pending;
+            synchronized (this) {
+                mStopped = true;
+                pending = new ArrayList<>(mNewHandlers);
+                mNewHandlers.clear();
+                mTasks.clear();
+            }
+            // aborting removes the handler from mHandlers
+            for (ITransferHandler handler : new ArrayList<>(mHandlers)) {
+                abortSilently(handler);
+            }
+            for (ITransferHandler handler : pending) {
+                abortSilently(handler);
+            }
+            mHandlers.clear();
+            closeSilently(mSelector);
+        }
+    }
+
+    // a bug in one transfer takes down that transfer only
+    private void fail(ITransferHandler handler, RuntimeException e) {
+        Log.e(TAG, "handler failed, aborting it");
+        e.printStackTrace();
+        abortSilently(handler);
+        mHandlers.remove(handler);
+    }
+
+    private static void abortSilently(ITransferHandler handler) {
+        try {
+            handler.abort();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
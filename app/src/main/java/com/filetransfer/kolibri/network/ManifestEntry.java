@@ -0,0 +1,81 @@
+package com.filetransfer.kolibri.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// one file range announced in a session manifest
+public class ManifestEntry {
+    // stream id, transfer id, fingerprint, file size, range offset, range length, stripe count, codec, name length
+    static final int FIXED_LEN = 8 + 8 + 8 + 8 + 8 + 8 + 4 + 4 + 4;
+
+    public final long id;
+    public final long transferId;
+    public final long fingerprint;
+    public final long size;
+    public final long rangeOffset;
+    public final long rangeLength;
+    public final int stripeCount;
+    public final int codec;
+    public final String name;
+
+    public ManifestEntry(long id, long transferId, long fingerprint, long size, long rangeOffset, long rangeLength, int stripeCount, int codec, String name) {
+        this.id = id;
+        this.transferId = transferId;
+        this.fingerprint = fingerprint;
+        this.size = size;
+        this.rangeOffset = rangeOffset;
+        this.rangeLength = rangeLength;
+        this.stripeCount = stripeCount;
+        this.codec = codec;
+        this.name = name;
+    }
+
+    // -1 if the name is too long to be sent
+    public static int encodedLength(String name) {
+        int nameLen = name.getBytes(StandardCharsets.UTF_8).length;
+        return nameLen > NetProtocol.MAX_NAME_LEN ? -1 : FIXED_LEN + nameLen;
+    }
+
+    public void write(ByteBuffer buf) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        buf.putLong(id);
+        buf.putLong(transferId);
+        buf.putLong(fingerprint);
+        buf.putLong(size);
+        buf.putLong(rangeOffset);
+        buf.putLong(rangeLength);
+        buf.putInt(stripeCount);
+        buf.putInt(codec);
+        buf.putInt(nameBytes.length);
+        buf.put(nameBytes);
+    }
+
+    public static ManifestEntry read(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < FIXED_LEN) {
+            throw new IOException("truncated manifest entry");
+        }
+        long id = buf.getLong();
+        long transferId = buf.getLong();
+        long fingerprint = buf.getLong();
+        long size = buf.getLong();
+        long rangeOffset = buf.getLong();
+        long rangeLength = buf.getLong();
+        int stripeCount = buf.getInt();
+        int codec = buf.getInt();
+        int nameLen = FrameCodec.getLength(buf, 0, Math.min(NetProtocol.MAX_NAME_LEN, buf.remaining()), "name");
+        if (stripeCount < 1 || stripeCount > OutgoingFile.MAX_STRIPES) {
+            throw new IOException("bad stripe count " + stripeCount);
+        }
+        // a striped range is never empty unless the file is
+        if (rangeOffset < 0 || rangeLength < 0 || rangeLength > size - rangeOffset
+                || (stripeCount > 1 && rangeLength == 0 && size > 0)) {
+            throw new IOException("bad range " + rangeOffset + "+" + rangeLength + " of " + size);
+        }
+        if (codec != NetProtocol.CODEC_RAW && codec != NetProtocol.CODEC_DEFLATE) {
+            throw new IOException("unknown codec " + codec);
+        }
+        return new ManifestEntry(id, transferId, fingerprint, size, rangeOffset, rangeLength, stripeCount, codec,
+                FrameCodec.getString(buf, nameLen));
+    }
+}
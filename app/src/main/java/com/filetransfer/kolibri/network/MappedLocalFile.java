@@ -0,0 +1,46 @@
+package com.filetransfer.kolibri.network;
+
+import com.filetransfer.kolibri.misc.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// a regular file on local storage, e.g. an app package. its ranges are sent from mapped windows, the page cache
+// reads ahead and nothing is copied through the app
+public class MappedLocalFile implements ILocalFile {
+    private final String mName;
+    private final FileInputStream mStream;
+    private final long mSize;
+
+    public MappedLocalFile(File file, String name) throws IOException {
+        mName = name;
+        mStream = new FileInputStream(file);
+        mSize = mStream.getChannel().size();
+    }
+
+    @Override
+    public String name() {
+        return mName;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public FileInputStream stream() {
+        return mStream;
+    }
+
+    @Override
+    public boolean mappable() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        Util.closeSilently(mStream);
+    }
+}
@@ -0,0 +1,69 @@
+package com.filetransfer.kolibri.network;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+
+// hands out names for incoming files, "name (n).ext" when the name is taken. a directory is listed once, the names
+// handed out since are added to its index, so a collision costs no lookups. receivers share one allocator
+class NameAllocator {
+    private static class DirIndex {
+        final HashSet<String> taken = new HashSet<>();
+        // the next n to try for a name
+        final HashMap<String, Integer> next = new HashMap<>();
+    }
+
+    private final HashMap<File, DirIndex> mDirs = new HashMap<>();
+
+    // a name next to the existing files, never overwriting one nor taking one still being received
+    synchronized File allocate(File file) {
+        File dir = file.getParentFile();
+        DirIndex index = indexOf(dir);
+        String name = file.getName();
+        if (take(index, dir, name)) {
+            return file;
+        }
+
+        // the dot of a hidden file does not start an extension
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        Integer next = index.next.get(name);
+        int n = next == null ? 1 : next;
+        String candidate;
+        do {
+            candidate = base + " (" + n++ + ")" + ext;
+        } while (!take(index, dir, candidate));
+        index.next.put(name, n);
+        return new File(dir, candidate);
+    }
+
+    // files may still appear behind our back, the one name picked is looked at once
+    private static boolean take(DirIndex index, File dir, String name) {
+        if (!index.taken.add(name)) {
+            return false;
+        }
+        File file = new File(dir, name);
+        return !file.exists() && !PartFile.partOf(file).exists();
+    }
+
+    private DirIndex indexOf(File dir) {
+        DirIndex index = mDirs.get(dir);
+        if (index != null) {
+            return index;
+        }
+        index = new DirIndex();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                index.taken.add(name);
+                String target = PartFile.targetOf(name);
+                if (target != null) {
+                    index.taken.add(target);
+                }
+            }
+        }
+        mDirs.put(dir, index);
+        return index;
+    }
+}
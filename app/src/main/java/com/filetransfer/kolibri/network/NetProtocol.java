@@ -5,10 +5,35 @@ public class NetProtocol {
     public static final int PORT = 19810;
     public static final int FILE_PORT = 19811;
 
-    public static final short MAX_CHAT_LEN = 1024;
-    public static final int FILE_BLK_SIZE = 4 * 1024;
+    // bytes of utf-8, 1024 characters of any script fit
+    public static final int MAX_CHAT_LEN = 4 * 1024;
+    // the length goes out as a single byte
+    public static final int MAX_DEVICE_NAME_LEN = 255;
+    // bytes of utf-8, including the directories of a tree transfer
+    public static final int MAX_NAME_LEN = 4 * 1024;
+    // the largest payload of any control command
+    public static final int MAX_COMMAND_LEN = MAX_CHAT_LEN;
+    public static final int MIN_FILE_BLK_SIZE = 64 * 1024;
+    public static final int MAX_FILE_BLK_SIZE = 4 * 1024 * 1024;
+    // a manifest must fit the smallest block buffer
+    public static final int MAX_MANIFEST_LEN = MIN_FILE_BLK_SIZE;
+    public static final int MAX_MANIFEST_FILES = 256;
 
-    public static final byte[] HANDSHAKE_HEADER = { 0x11, 0x45, 0x14 };
+    // how a file body is framed, see BlockCodec
+    public static final int CODEC_RAW = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    // answered instead of a resume offset when the receiver may have the range already, in a local copy or in a part
+    // kept from an earlier attempt. the answers are followed by how far into every such range that goes, the sender
+    // then offers the checksums of the segments up to there and gets a second answer
+    public static final long ANSWER_OFFER = -1;
+    // answered when the receiver cannot store the file, the sender skips it and it fails on both ends
+    public static final long ANSWER_NO_SPACE = -2;
+
+    // bumped whenever a frame changes, peers of another version are refused during the handshake
+    public static final byte PROTOCOL_VERSION = 3;
+    // opens both the control connection and every transfer connection: magic, protocol version
+    public static final byte[] HANDSHAKE_HEADER = { 0x11, 0x45, 0x14, PROTOCOL_VERSION };
 
     public static final byte CMD_CHAT = 0x03;
     public static final byte CMD_VIBRATE = 0x04;
@@ -23,30 +23,34 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
-import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.Vibrator;
+import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
+import androidx.lifecycle.LiveData;
 import androidx.preference.PreferenceManager;
 
 import com.filetransfer.kolibri.R;
+import com.filetransfer.kolibri.db.DbExecutor;
 import com.filetransfer.kolibri.db.MainDatabase;
-import com.filetransfer.kolibri.misc.Util;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class NetworkService extends Service {
 
     public static final String PREF_DEVICE_NAME = "device_name";
+    public static final String PREF_COMPRESS = "compress_transfers";
     public static final int EVENT_STATE_CHANGED = 0;
     public static final int EVENT_NEW_ENTRY = 1;
     public static final int NOTICE_ID = 100;
@@ -68,6 +72,8 @@ public class NetworkService extends Service {
 
     private static final String TAG = NetworkService.class.getSimpleName();
     private CommandController mCmdController;
+    private TransferMonitor mTransferMonitor;
+    private TransferProgressLiveData mTransferProgress;
     private WifiP2pManager mManager;
     private WifiP2pManager.Channel mChannel;
     private volatile State mState = State.NOT_CONNECTED;
@@ -81,6 +87,8 @@ public class NetworkService extends Service {
             String name = getDeviceName(sp);
             setDeviceNameHacked(name);
             mCmdController.setDevName(name);
+        } else if (PREF_COMPRESS.equals(key)) {
+            mCmdController.setCompression(sp.getBoolean(PREF_COMPRESS, false));
         }
     };
 
@@ -141,6 +149,7 @@ public class NetworkService extends Service {
     private final ITransferCallback mTransferCb = new ITransferCallback() {
         @Override
         public void onNewTask() {
+            mTransferProgress.kick();
             Message m = Message.obtain(null, NetworkService.EVENT_NEW_ENTRY);
             activityCallback(m);
         }
@@ -152,7 +161,7 @@ public class NetworkService extends Service {
 
         mVibrator = getSystemService(Vibrator.class);
         MainDatabase db = MainDatabase.getInstance(getApplicationContext());
-        db.fileDao().abortAllRunningTasks();
+        DbExecutor.execute(db.fileDao()::abortAllRunningTasks);
 
         mManager = getSystemService(WifiP2pManager.class);
         mChannel = mManager.initialize(this, getMainLooper(), () -> {
@@ -163,7 +172,10 @@ public class NetworkService extends Service {
 
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         TransferController tc = new TransferController(getExternalFilesDir("received"), db.fileDao(), mTransferCb);
+        mTransferMonitor = tc.monitor();
+        mTransferProgress = new TransferProgressLiveData(tc.progress());
         mCmdController = new CommandController(tc, mCommandCb, db.chatDao(), getDeviceName(sp));
+        mCmdController.setCompression(sp.getBoolean(PREF_COMPRESS, false));
 
         setDeviceNameHacked(sp.getString(PREF_DEVICE_NAME, Build.MODEL));
         sp.registerOnSharedPreferenceChangeListener(mPrefListener);
@@ -308,78 +320,58 @@ public class NetworkService extends Service {
     }
 
     public void sendFile(String uriStr) {
-        Uri uri = Uri.parse(uriStr);
-        String path = uri.getPath();
-        if (path.endsWith("/")) {
-            throw new IllegalArgumentException("invalid file path");
-        }
+        sendFiles(Collections.singletonList(uriStr));
+    }
 
+    public void sendFiles(List<String> uriStrs) {
         ContentResolver cr = getContentResolver();
-        try (Cursor infoCursor = cr.query(uri, null, null, null, null)) {
-            int nameIndex = infoCursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-            int sizeIndex = infoCursor.getColumnIndex(OpenableColumns.SIZE);
-            infoCursor.moveToFirst();
-
-            String name = infoCursor.getString(nameIndex);
-            long size = infoCursor.getLong(sizeIndex);
-            ParcelFileDescriptor fd = cr.openFileDescriptor(uri, "r");
-
-            mCmdController.sendFile(new ILocalFile() {
-                final FileInputStream stream = new FileInputStream(fd.getFileDescriptor());
+        ArrayList<ILocalFile> files = new ArrayList<>();
+        for (String uriStr : uriStrs) {
+            Uri uri = Uri.parse(uriStr);
+            String path = uri.getPath();
+            if (path == null || path.endsWith("/")) {
+                // not a file, the rest of the selection still goes
+                Toast.makeText(this, "Not a file", Toast.LENGTH_LONG).show();
+                Log.w(TAG, "invalid file path, uri = " + uriStr);
+                continue;
+            }
 
-                @Override
-                public String name() {
-                    return name;
+            try (Cursor infoCursor = cr.query(uri, null, null, null, null)) {
+                if (infoCursor == null || !infoCursor.moveToFirst()) {
+                    Toast.makeText(this, "Open file failed", Toast.LENGTH_LONG).show();
+                    Log.w(TAG, "open file failed, uri = " + uriStr);
+                    continue;
                 }
+                int nameIndex = infoCursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                int sizeIndex = infoCursor.getColumnIndex(OpenableColumns.SIZE);
 
-                @Override
-                public long size() {
-                    return size;
-                }
+                String name = infoCursor.getString(nameIndex);
+                long size = infoCursor.getLong(sizeIndex);
 
-                @Override
-                public FileInputStream stream() {
-                    return stream;
-                }
+                files.add(new UriLocalFile(cr, uri, name, size));
+            }
+        }
+        mCmdController.sendFiles(files);
+    }
 
-                @Override
-                public void close() {
-                    Util.closeSilently(stream);
-                    Util.closeSilently(fd);
-                }
-            });
-        } catch (FileNotFoundException e) {
-            Toast.makeText(this, "Open file failed", Toast.LENGTH_LONG).show();
-            Log.w(TAG, "open file failed, uri = " + uriStr);
+    public void sendTree(String treeUriStr) {
+        Uri treeUri = Uri.parse(treeUriStr);
+        ContentResolver cr = getContentResolver();
+        Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+        try (Cursor infoCursor = cr.query(rootUri, new String[]{ DocumentsContract.Document.COLUMN_DISPLAY_NAME }, null, null, null)) {
+            if (infoCursor == null || !infoCursor.moveToFirst()) {
+                Toast.makeText(this, "Open folder failed", Toast.LENGTH_LONG).show();
+                Log.w(TAG, "open folder failed, uri = " + treeUriStr);
+                return;
+            }
+            // the tree is recreated under its own name on the receiver
+            mCmdController.sendTree(new DocumentTreeWalker(cr, treeUri, infoCursor.getString(0)));
         }
     }
 
     public void sendApp(String name, String sourceDir) {
         try {
-            mCmdController.sendFile(new ILocalFile() {
-                final FileInputStream stream = new FileInputStream(sourceDir);
-                final long size = stream.getChannel().size();
-
-                @Override
-                public String name() {
-                    return name + ".apk";
-                }
-
-                @Override
-                public long size() {
-                    return size;
-                }
-
-                @Override
-                public FileInputStream stream() {
-                    return stream;
-                }
-
-                @Override
-                public void close() {
-                    Util.closeSilently(stream);
-                }
-            });
+            mCmdController.sendFile(new MappedLocalFile(new File(sourceDir), name + ".apk"));
         } catch (IOException e) {
             Toast.makeText(this, "Open app package failed", Toast.LENGTH_LONG).show();
             Log.w(TAG, "open app package failed, name = " + name + ", sourceDir = " + sourceDir);
@@ -390,6 +382,20 @@ public class NetworkService extends Service {
         return mCmdController.getPairName();
     }
 
+    // byte counts and states of the running and just finished tasks, pushed from memory while transfers run
+    public LiveData<List<TaskProgress>> getTransferProgress() {
+        return mTransferProgress;
+    }
+
+    // open transfer connections first, then the last ones finished
+    public List<TransferMetrics.Snapshot> getTransferMetrics() {
+        return mTransferMonitor.snapshot();
+    }
+
+    public String dumpTransferMetrics() {
+        return mTransferMonitor.toJson();
+    }
+
     public static String getDeviceName(SharedPreferences sp) {
         return sp.getString(NetworkService.PREF_DEVICE_NAME, Build.MODEL);
     }
@@ -0,0 +1,251 @@
+package com.filetransfer.kolibri.network;
+
+import android.util.Log;
+
+import com.filetransfer.kolibri.db.entity.FileEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+public class OutgoingFile extends StripeGroup {
+    private static final String TAG = OutgoingFile.class.getSimpleName();
+    // files below this size are not worth the extra connections
+    private static final long STRIPE_MIN_SIZE = 64L * 1024 * 1024;
+    // receivers reject manifests that claim more
+    static final int MAX_STRIPES = 4;
+    // keep range boundaries block aligned
+    private static final long STRIPE_ALIGN = NetProtocol.MIN_FILE_BLK_SIZE;
+
+    private final ILocalFile mFile;
+    private final long mId;
+    private final Consumer<OutgoingFile> mOnStriped;
+    private FileChannel mChannel;
+    private ReadableByteChannel mSequential;
+    private long mBasePos = -1;
+    private long mStripeSize;
+    private boolean mOpened = false;
+    private long mTransferId;
+    private long mFingerprint;
+    // guarded by this: complete once the file is opened and recorded, whether it is being opened, whether it finished
+    private CompletableFuture<Void> mStart;
+    private boolean mOpening = false;
+    private boolean mClosed = false;
+
+    public static OutgoingFile create(ILocalFile file, long id, FileTaskWrapper task) {
+        return create(file, id, task, null);
+    }
+
+    // a file large enough may be striped, whether its source can seek is only known once it is opened off the caller's
+    // thread. onStriped is then called from that disk worker to start the connections of the stripes after the first
+    public static OutgoingFile create(ILocalFile file, long id, FileTaskWrapper task, Consumer<OutgoingFile> onStriped) {
+        return new OutgoingFile(file, id, task, onStriped != null && file.size() >= STRIPE_MIN_SIZE ? onStriped : null);
+    }
+
+    private OutgoingFile(ILocalFile file, long id, FileTaskWrapper task, Consumer<OutgoingFile> onStriped) {
+        super(task);
+        mFile = file;
+        mId = id;
+        mOnStriped = onStriped;
+        setStripes(1);
+    }
+
+    private void setStripes(int stripes) {
+        setStripeCount(stripes);
+        long stripeSize = (mFile.size() + stripes - 1) / stripes;
+        mStripeSize = (stripeSize + STRIPE_ALIGN - 1) / STRIPE_ALIGN * STRIPE_ALIGN;
+    }
+
+    // the source is opened as late as possible so a big batch does not hold a descriptor for every file
+    private void open() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+        try {
+            mChannel = mFile.stream().getChannel();
+        } catch (IOException e) {
+            Log.w(TAG, "failed to open " + mFile.name());
+            return;
+        }
+        try {
+            // pipes and sockets handed out by content providers cannot seek, they are read in order
+            mBasePos = mChannel.position();
+        } catch (IOException e) {
+            Log.i(TAG, mFile.name() + " cannot seek, reading it in order");
+            mBasePos = -1;
+        }
+        if (mBasePos == -1) {
+            try {
+                mSequential = mFile.sequential();
+            } catch (IOException e) {
+                Log.w(TAG, "failed to open " + mFile.name());
+                mChannel = null;
+            }
+        }
+    }
+
+    public long id() {
+        return mId;
+    }
+
+    // sent as the first stripe over a connection of its own, the others follow if the source turns out to be seekable
+    public boolean mayStripe() {
+        return mOnStriped != null;
+    }
+
+    public long transferId() {
+        return mTransferId;
+    }
+
+    public long fingerprint() {
+        return mFingerprint;
+    }
+
+    public String name() {
+        return mFile.name();
+    }
+
+    public long size() {
+        return mFile.size();
+    }
+
+    public FileChannel channel() {
+        return mChannel;
+    }
+
+    // in-order reads for a source that cannot seek
+    public ReadableByteChannel sequentialChannel() {
+        return mSequential;
+    }
+
+    // false if the source could not be opened, the file is then reported as failed right away
+    public boolean isOpen() {
+        return mChannel != null;
+    }
+
+    // whether ranges can be read positionally
+    public boolean isSeekable() {
+        return mBasePos >= 0;
+    }
+
+    // whether ranges can be sent from mapped windows of channel()
+    public boolean isMappable() {
+        return isSeekable() && mFile.mappable();
+    }
+
+    // channel position where the file content starts
+    public long basePosition() {
+        return mBasePos;
+    }
+
+    public long rangeOffset(int stripe) {
+        return Math.min(stripe * mStripeSize, mFile.size());
+    }
+
+    public long rangeLength(int stripe) {
+        return Math.min(mStripeSize, mFile.size() - rangeOffset(stripe));
+    }
+
+    // opens and fingerprints the files and records them in one go, on a disk worker. stripes of a file call this from
+    // their own loops, the first one does the work and the others wait for it
+    public static CompletableFuture<Void> startAll(List<OutgoingFile> files) {
+        ArrayList<OutgoingFile> claimed = new ArrayList<>();
+        ArrayList<CompletableFuture<Void>> all = new ArrayList<>();
+        for (OutgoingFile file : files) {
+            synchronized (file) {
+                if (file.mStart == null) {
+                    file.mStart = new CompletableFuture<>();
+                    claimed.add(file);
+                }
+                all.add(file.mStart);
+            }
+        }
+        if (!claimed.isEmpty()) {
+            DiskStage.background(() -> start(claimed));
+        }
+        return CompletableFuture.allOf(all.toArray(new CompletableFuture[0]));
+    }
+
+    private static void start(List<OutgoingFile> files) {
+        ArrayList<FileTaskWrapper> tasks = new ArrayList<>();
+        ArrayList<FileEntry> entries = new ArrayList<>();
+        ArrayList<OutgoingFile> striped = new ArrayList<>();
+        try {
+            for (OutgoingFile file : files) {
+                synchronized (file) {
+                    if (file.mClosed) {
+                        continue;
+                    }
+                    file.mOpening = true;
+                }
+                file.open();
+                if (file.mayStripe() && file.isSeekable()) {
+                    file.setStripes(MAX_STRIPES);
+                }
+                try {
+                    file.mFingerprint = file.isSeekable() ? Fingerprint.compute(file.mChannel, file.mBasePos, file.size()) : 0;
+                } catch (IOException e) {
+                    Log.w(TAG, "failed to fingerprint " + file.name() + ", it will not be resumable");
+                    file.mFingerprint = 0;
+                }
+                file.mTransferId = file.computeTransferId();
+                boolean closed;
+                synchronized (file) {
+                    file.mOpening = false;
+                    closed = file.mClosed;
+                }
+                if (closed) {
+                    // finished while it was opened, onFinished() left the closing to us
+                    file.mFile.close();
+                    continue;
+                }
+                tasks.add(file.mTask);
+                if (file.stripeCount() > 1) {
+                    striped.add(file);
+                }
+                // temporarily make path null as there is no need now for the sender to open files
+                // also it is difficult to handle permissions
+                entries.add(file.mTask.newEntry(file.name(), null, file.size(), true, file.mTransferId, file.mFingerprint));
+            }
+            FileTaskWrapper.startAll(tasks, entries);
+            // the other stripes wait for mStart like the first one
+            for (OutgoingFile file : striped) {
+                file.mOnStriped.accept(file);
+            }
+        } finally {
+            // files that could not be opened are reported by the stripes
+            for (OutgoingFile file : files) {
+                file.mStart.complete(null);
+            }
+        }
+    }
+
+    // stable across resends of the same file so the receiver can find what it already has
+    private long computeTransferId() {
+        MessageDigest md = Fingerprint.newDigest();
+        md.update(mFile.name().getBytes(StandardCharsets.UTF_8));
+        md.update(ByteBuffer.allocate(16).putLong(0, mFile.size()).putLong(8, mFingerprint));
+        return ByteBuffer.wrap(md.digest()).getLong();
+    }
+
+    @Override
+    protected void onFinished(boolean completed) {
+        boolean opening;
+        synchronized (this) {
+            mClosed = true;
+            opening = mOpening;
+        }
+        if (!opening) {
+            mFile.close();
+        }
+        mTask.finish(completed);
+    }
+}
@@ -0,0 +1,277 @@
+package com.filetransfer.kolibri.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeMap;
+
+// an incoming file is written to a hidden .part next to its target and only renamed into place once complete, so an
+// aborted transfer never leaves a truncated file under the real name. a sidecar checkpoint records how much of every
+// range is on disk for good, along with the checksums of its segments, so a later attempt resumes without reading
+// that part back
+public class PartFile {
+    private static final int MAGIC = 0x4b435054;
+    private static final int VERSION = 1;
+    private static final String PART_SUFFIX = ".part";
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+
+    private static class Range {
+        final long start;
+        final long end;
+        // bytes before this file offset are written
+        long valid;
+        // segments of the range hashed as of the last checkpoint, or as loaded
+        int[] checksums;
+        // the checksum of the range while it is being received
+        RangeChecksum live;
+
+        Range(long start, long end, long valid, int[] checksums) {
+            this.start = start;
+            this.end = end;
+            this.valid = valid;
+            this.checksums = checksums;
+        }
+    }
+
+    private final File mPart;
+    private final File mCheckpoint;
+    private final long mTransferId;
+    private final long mFingerprint;
+    private final long mSize;
+    // by range start, guarded by this
+    private final TreeMap<Long, Range> mRanges = new TreeMap<>();
+    // checkpoints of different stripes must not interleave
+    private final Object mSaveLock = new Object();
+    // guarded by mSaveLock, a checkpoint arriving late must not outlive the file
+    private boolean mClosed = false;
+
+    public PartFile(File target, long transferId, long fingerprint, long size) {
+        mPart = partOf(target);
+        mCheckpoint = new File(target.getParentFile(), "." + target.getName() + CHECKPOINT_SUFFIX);
+        mTransferId = transferId;
+        mFingerprint = fingerprint;
+        mSize = size;
+    }
+
+    public static File partOf(File target) {
+        return new File(target.getParentFile(), "." + target.getName() + PART_SUFFIX);
+    }
+
+    // the name a part file is received for, null for any other file
+    static String targetOf(String name) {
+        return targetOf(name, PART_SUFFIX);
+    }
+
+    private static String targetOf(String name, String suffix) {
+        if (name.length() <= 1 + suffix.length() || !name.startsWith(".") || !name.endsWith(suffix)) {
+            return null;
+        }
+        return name.substring(1, name.length() - suffix.length());
+    }
+
+    // deletes the parts and checkpoints under dir, last modified before the given time, whose targets are not kept.
+    // on a disk worker
+    static void sweep(File dir, Set<File> keep, long before) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                sweep(file, keep, before);
+                continue;
+            }
+            String target = targetOf(file.getName(), PART_SUFFIX);
+            if (target == null) {
+                target = targetOf(file.getName(), CHECKPOINT_SUFFIX);
+            }
+            if (target != null && !keep.contains(new File(dir, target)) && file.lastModified() < before) {
+                file.delete();
+            }
+        }
+    }
+
+    public File file() {
+        return mPart;
+    }
+
+    // picks up the checkpoint of an earlier attempt at the same content, anything unreadable counts as nothing written
+    public void load() {
+        if (!mCheckpoint.isFile()) {
+            return;
+        }
+        long length = mPart.length();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mCheckpoint))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != mTransferId
+                    || in.readLong() != mFingerprint || in.readLong() != mSize) {
+                return;
+            }
+            int count = in.readInt();
+            ArrayList<Range> ranges = new ArrayList<>();
+            for (int i = 0; i < count; ++i) {
+                long start = in.readLong();
+                long end = in.readLong();
+                long valid = in.readLong();
+                int[] checksums = new int[in.readInt()];
+                if (start < 0 || end > mSize || valid < start || valid > end || valid > length
+                        || checksums.length > RangeChecksum.segmentCount(start, end)) {
+                    return;
+                }
+                for (int k = 0; k < checksums.length; ++k) {
+                    checksums[k] = in.readInt();
+                }
+                ranges.add(new Range(start, end, valid, checksums));
+            }
+            synchronized (this) {
+                for (Range range : ranges) {
+                    mRanges.put(range.start, range);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // bytes at the head of [start, end) kept from an earlier attempt
+    public synchronized long validLength(long start, long end) {
+        Range range = mRanges.get(start);
+        return range == null || range.end != end ? 0 : range.valid - start;
+    }
+
+    // whether a later attempt can pick it up, see IncomingFileRegistry.open()
+    public boolean resumable() {
+        return mFingerprint != 0 && validTotal() > 0;
+    }
+
+    public synchronized long validTotal() {
+        long total = 0;
+        for (Range range : mRanges.values()) {
+            total += range.valid - range.start;
+        }
+        return total;
+    }
+
+    // checksums of the leading segments of [start, end) that were kept
+    public synchronized int[] checksums(long start, long end) {
+        Range range = mRanges.get(start);
+        if (range == null || range.end != end) {
+            return new int[0];
+        }
+        return Arrays.copyOf(range.checksums, Math.min(range.checksums.length, completeSegments(range)));
+    }
+
+    // the range is being received from valid on, checksum hashes it as it is written
+    public synchronized void track(long start, long end, long valid, RangeChecksum checksum) {
+        Range range = mRanges.get(start);
+        if (range == null || range.end != end) {
+            range = new Range(start, end, valid, new int[0]);
+            mRanges.put(start, range);
+        }
+        range.valid = valid;
+        range.live = checksum;
+    }
+
+    public synchronized void setValid(long start, long valid) {
+        Range range = mRanges.get(start);
+        if (range != null) {
+            range.valid = valid;
+        }
+    }
+
+    // e.g. back to the first segment that failed verification
+    public synchronized void rewind(long start, long valid) {
+        Range range = mRanges.get(start);
+        if (range != null && valid < range.valid) {
+            range.valid = valid;
+            range.live = null;
+            range.checksums = Arrays.copyOf(range.checksums, Math.min(range.checksums.length, completeSegments(range)));
+        }
+    }
+
+    // segments that end before range.valid
+    private static int completeSegments(Range range) {
+        int count = RangeChecksum.segmentCount(range.start, range.end);
+        int complete = 0;
+        long segmentEnd = (range.start / RangeChecksum.SEGMENT_SIZE + 1) * RangeChecksum.SEGMENT_SIZE;
+        while (complete < count && Math.min(segmentEnd, range.end) <= range.valid) {
+            ++complete;
+            segmentEnd += RangeChecksum.SEGMENT_SIZE;
+        }
+        return complete;
+    }
+
+    // makes the bytes counted as valid durable, then records them. a crash in between leaves the previous checkpoint
+    public void save(FileChannel data) throws IOException {
+        synchronized (mSaveLock) {
+            if (mClosed) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mTransferId);
+            out.writeLong(mFingerprint);
+            out.writeLong(mSize);
+            synchronized (this) {
+                out.writeInt(mRanges.size());
+                for (Range range : mRanges.values()) {
+                    if (range.live != null) {
+                        int hashed = Math.min(range.live.hashedPrefix(), completeSegments(range));
+                        if (hashed > range.checksums.length) {
+                            range.checksums = new int[hashed];
+                            for (int k = 0; k < hashed; ++k) {
+                                range.checksums[k] = range.live.value(k);
+                            }
+                        }
+                    }
+                    out.writeLong(range.start);
+                    out.writeLong(range.end);
+                    out.writeLong(range.valid);
+                    out.writeInt(range.checksums.length);
+                    for (int checksum : range.checksums) {
+                        out.writeInt(checksum);
+                    }
+                }
+            }
+
+            data.force(false);
+            File tmp = new File(mCheckpoint.getParentFile(), mCheckpoint.getName() + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(tmp)) {
+                bytes.writeTo(file);
+                file.getFD().sync();
+            }
+            if (!tmp.renameTo(mCheckpoint)) {
+                throw new IOException("cannot save " + mCheckpoint);
+            }
+        }
+    }
+
+    // renames the completed part to target and drops the checkpoint
+    public void publish(File target) throws IOException {
+        synchronized (mSaveLock) {
+            if (!mPart.renameTo(target)) {
+                throw new IOException("cannot rename " + mPart + " to " + target);
+            }
+            mClosed = true;
+            mCheckpoint.delete();
+        }
+    }
+
+    // gives up on the file, nothing of it is kept
+    public void discard() {
+        synchronized (mSaveLock) {
+            mClosed = true;
+            mPart.delete();
+            mCheckpoint.delete();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.filetransfer.kolibri.network;
+
+import com.filetransfer.kolibri.db.DbExecutor;
+import com.filetransfer.kolibri.db.dao.FileDao;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// persists the progress of the running tasks off the loops. tasks count in memory and only mark themselves dirty,
+// the db writer stores every dirty task in one transaction once per interval. a finished task is stored right away,
+// its byte count is the checkpoint a later resend resumes from.
+// the ui reads progress from here as well, see snapshot()
+class ProgressSink {
+    // finished tasks stay in the snapshots this long, until the list has loaded their entries for sure
+    private static final long RECENT_KEEP_NS = 10_000_000_000L;
+
+    // the final state of a task, status as in FileEntry
+    private static class Final {
+        final FileTaskWrapper task;
+        final long transferred;
+        final int status;
+
+        Final(FileTaskWrapper task, long transferred, int status) {
+            this.task = task;
+            this.transferred = transferred;
+            this.status = status;
+        }
+    }
+
+    private final FileDao mDao;
+    private final long mInterval;
+    private final ConcurrentLinkedQueue<FileTaskWrapper> mDirty = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Final> mFinished = new ConcurrentLinkedQueue<>();
+    // a timed flush is pending, and a flush for finished tasks is
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean mUrgent = new AtomicBoolean(false);
+    private final ConcurrentHashMap<Long, FileTaskWrapper> mRunning = new ConcurrentHashMap<>();
+    // finished tasks with the time they finished, guarded by itself
+    private final ArrayDeque<TaskProgress> mRecent = new ArrayDeque<>();
+    private final ArrayDeque<Long> mRecentTimes = new ArrayDeque<>();
+
+    // interval in ms between two writes of the progress of running tasks
+    ProgressSink(FileDao dao, long interval) {
+        mDao = dao;
+        mInterval = interval;
+    }
+
+    FileDao dao() {
+        return mDao;
+    }
+
+    void started(long id, FileTaskWrapper task) {
+        mRunning.put(id, task);
+    }
+
+    // called by the task once it is no longer queued, see FileTaskWrapper.proceed
+    void markDirty(FileTaskWrapper task) {
+        mDirty.add(task);
+        if (mScheduled.compareAndSet(false, true)) {
+            DbExecutor.schedule(() -> {
+                mScheduled.set(false);
+                flush();
+            }, mInterval);
+        }
+    }
+
+    // the task's insert is ahead on the writer, so the id is known when the flush runs
+    void finish(FileTaskWrapper task, long transferred, int status) {
+        mFinished.add(new Final(task, transferred, status));
+        if (mUrgent.compareAndSet(false, true)) {
+            DbExecutor.execute(() -> {
+                mUrgent.set(false);
+                flush();
+            });
+        }
+    }
+
+    // the running tasks and those finished within RECENT_KEEP_NS, without touching the database
+    List<TaskProgress> snapshot() {
+        ArrayList<TaskProgress> progress = new ArrayList<>();
+        synchronized (mRecent) {
+            pruneRecent(System.nanoTime());
+            progress.addAll(mRecent);
+        }
+        for (FileTaskWrapper task : mRunning.values()) {
+            TaskProgress p = task.progress();
+            if (p != null) {
+                progress.add(p);
+            }
+        }
+        return progress;
+    }
+
+    // nothing running and nothing finished recently
+    boolean idle() {
+        synchronized (mRecent) {
+            pruneRecent(System.nanoTime());
+            return mRunning.isEmpty() && mRecent.isEmpty();
+        }
+    }
+
+    // must hold mRecent
+    private void pruneRecent(long now) {
+        Iterator<Long> times = mRecentTimes.iterator();
+        while (times.hasNext() && now - times.next() > RECENT_KEEP_NS) {
+            times.remove();
+            mRecent.removeFirst();
+        }
+    }
+
+    // runs on the writer only, a failed flush is logged there. the finished tasks go last, their state overrides progress taken before they finished
+    private void flush() {
+        ArrayList<Long> ids = new ArrayList<>();
+        ArrayList<Long> transferred = new ArrayList<>();
+        ArrayList<Integer> status = new ArrayList<>();
+        FileTaskWrapper task;
+        while ((task = mDirty.poll()) != null) {
+            long id = task.takeDirty();
+            if (id >= 0) {
+                ids.add(id);
+                transferred.add(task.transferred());
+                status.add(-1);
+            }
+        }
+        Final f;
+        while ((f = mFinished.poll()) != null) {
+            long id = f.task.id();
+            if (id < 0) {
+                // the insert failed
+                continue;
+            }
+            ids.add(id);
+            transferred.add(f.transferred);
+            status.add(f.status);
+            mRunning.remove(id);
+            synchronized (mRecent) {
+                pruneRecent(System.nanoTime());
+                mRecent.add(new TaskProgress(id, f.task.name(), f.task.size(), f.transferred, f.status));
+                mRecentTimes.add(System.nanoTime());
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        long[] idArray = new long[ids.size()];
+        long[] transferredArray = new long[ids.size()];
+        int[] statusArray = new int[ids.size()];
+        for (int i = 0; i < idArray.length; ++i) {
+            idArray[i] = ids.get(i);
+            transferredArray[i] = transferred.get(i);
+            statusArray[i] = status.get(i);
+        }
+        mDao.updateProgressByIds(idArray, transferredArray, statusArray);
+    }
+}
@@ -0,0 +1,209 @@
+package com.filetransfer.kolibri.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+// crc32 of the segments of a byte range. segments are aligned to file offsets so both sides cut them the same way.
+// a seekable range is hashed on worker threads, re-reading segments from the file once they have been transferred
+// so hashing overlaps with the transfer instead of slowing it down. other ranges are hashed inline as the data goes by
+public class RangeChecksum {
+    public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+    private static final ExecutorService sWorkers = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "checksum");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final FileChannel mChannel;
+    // channel position of file offset 0, the channel is only read positionally
+    private final long mBasePos;
+    private final long mStart;
+    private final long mEnd;
+    private final int[] mValues;
+    private final boolean[] mHashed;
+    private int mHashedPrefix = 0;
+    // segments before this one have been handed to the workers or finished inline
+    private int mSubmitted = 0;
+    private boolean mFailed = false;
+    private Runnable mOnDone;
+    private Executor mOnDoneExecutor;
+    private int mOnDoneCount;
+    // inline hashing only
+    private CRC32 mCrc;
+    private long mInlinePos;
+    private byte[] mScratch;
+
+    // hashes the file offsets [start, end) on worker threads
+    public RangeChecksum(FileChannel channel, long basePos, long start, long end) {
+        mChannel = channel;
+        mBasePos = basePos;
+        mStart = start;
+        mEnd = end;
+        mValues = new int[segmentCount(start, end)];
+        mHashed = new boolean[mValues.length];
+    }
+
+    // hashes the file offsets [start, end) from the data passed to update()
+    public RangeChecksum(long start, long end) {
+        this(null, 0, start, end);
+        mCrc = new CRC32();
+        mInlinePos = start;
+    }
+
+    public static int segmentCount(long start, long end) {
+        if (end <= start) {
+            return 0;
+        }
+        return (int) ((end - 1) / SEGMENT_SIZE - start / SEGMENT_SIZE + 1);
+    }
+
+    public int segmentCount() {
+        return mValues.length;
+    }
+
+    public long segmentStart(int i) {
+        return i == 0 ? mStart : (mStart / SEGMENT_SIZE + i) * SEGMENT_SIZE;
+    }
+
+    public long segmentEnd(int i) {
+        return Math.min((mStart / SEGMENT_SIZE + i + 1) * SEGMENT_SIZE, mEnd);
+    }
+
+    // values of the leading segments known from an earlier attempt, they are not read again. must precede advance()
+    public synchronized void preset(int[] values) {
+        for (int i = 0; i < values.length; ++i) {
+            mValues[i] = values[i];
+            mHashed[i] = true;
+        }
+        mSubmitted = Math.max(mSubmitted, values.length);
+    }
+
+    // the bytes before the file offset pos are final, hash the segments they complete
+    public synchronized void advance(long pos) {
+        while (mSubmitted < mValues.length && segmentEnd(mSubmitted) <= pos) {
+            int i = mSubmitted++;
+            sWorkers.execute(() -> hashSegment(i));
+        }
+    }
+
+    private void hashSegment(int i) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+        boolean failed = false;
+        try {
+            long pos = segmentStart(i);
+            long end = segmentEnd(i);
+            while (pos < end) {
+                buf.clear();
+                buf.limit((int) Math.min(READ_SIZE, end - pos));
+                int n = mChannel.read(buf, mBasePos + pos);
+                if (n == -1) {
+                    throw new IOException("file truncated at " + pos);
+                }
+                crc.update(buf.array(), 0, n);
+                pos += n;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed = true;
+        }
+
+        Runnable onDone = null;
+        Executor executor = null;
+        synchronized (this) {
+            mValues[i] = (int) crc.getValue();
+            mHashed[i] = true;
+            mFailed |= failed;
+            if (mOnDone != null && leadingHashed() >= mOnDoneCount) {
+                onDone = mOnDone;
+                executor = mOnDoneExecutor;
+                mOnDone = null;
+            }
+        }
+        if (onDone != null) {
+            executor.execute(onDone);
+        }
+    }
+
+    // data of the range in order, the remaining bytes of buf are consumed. may be fed from a disk worker
+    public synchronized void update(ByteBuffer buf) {
+        if (mScratch == null) {
+            mScratch = new byte[READ_SIZE];
+        }
+        while (buf.hasRemaining()) {
+            long segEnd = segmentEnd(mSubmitted);
+            int n = (int) Math.min(Math.min(buf.remaining(), mScratch.length), segEnd - mInlinePos);
+            buf.get(mScratch, 0, n);
+            mCrc.update(mScratch, 0, n);
+            mInlinePos += n;
+            if (mInlinePos == segEnd) {
+                mHashed[mSubmitted] = true;
+                mValues[mSubmitted++] = (int) mCrc.getValue();
+                mCrc.reset();
+            }
+        }
+    }
+
+    public void update(byte[] data, int off, int len) {
+        update(ByteBuffer.wrap(data, off, len));
+    }
+
+    // runs the callback on the executor once every segment is hashed, right away if they already are
+    public void whenDone(Executor executor, Runnable onDone) {
+        whenHashed(mValues.length, executor, onDone);
+    }
+
+    // the same once the leading count segments are hashed
+    public void whenHashed(int count, Executor executor, Runnable onDone) {
+        synchronized (this) {
+            if (leadingHashed() < count) {
+                mOnDone = onDone;
+                mOnDoneExecutor = executor;
+                mOnDoneCount = count;
+                return;
+            }
+        }
+        onDone.run();
+    }
+
+    // false if reading the file back failed, the values cannot be trusted then
+    public synchronized boolean isValid() {
+        return !mFailed;
+    }
+
+    // leading segments whose values are final
+    public synchronized int hashedPrefix() {
+        return mFailed ? 0 : leadingHashed();
+    }
+
+    // must hold this
+    private int leadingHashed() {
+        while (mHashedPrefix < mHashed.length && mHashed[mHashedPrefix]) {
+            ++mHashedPrefix;
+        }
+        return mHashedPrefix;
+    }
+
+    public synchronized int value(int i) {
+        return mValues[i];
+    }
+
+    // indices of the segments whose checksum differs from the expected one
+    public synchronized List<Integer> mismatches(int[] expected) {
+        ArrayList<Integer> bad = new ArrayList<>();
+        for (int i = 0; i < mValues.length; ++i) {
+            if (mFailed || mValues[i] != expected[i]) {
+                bad.add(i);
+            }
+        }
+        return bad;
+    }
+}
@@ -0,0 +1,147 @@
+package com.filetransfer.kolibri.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// reads a source that cannot seek, e.g. a pipe handed out by a content provider, ahead of its consumer on a thread
+// of its own. the provider keeps producing while the consumer is busy elsewhere, and a slow provider only ever
+// blocks that thread and the reader waiting for it
+public class ReadAheadChannel implements ReadableByteChannel {
+    private static final int CHUNK_SIZE = NetProtocol.MIN_FILE_BLK_SIZE;
+    private static final int WINDOW = 4 * 1024 * 1024;
+    private static final ExecutorService sPumps = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ReadableByteChannel mSource;
+    // guarded by this
+    private final ArrayDeque<ByteBuffer> mChunks = new ArrayDeque<>();
+    private long mBuffered = 0;
+    private boolean mStarted = false;
+    private boolean mEof = false;
+    private boolean mClosed = false;
+    private IOException mError;
+
+    public ReadAheadChannel(ReadableByteChannel source) {
+        mSource = source;
+    }
+
+    // blocks until something is buffered, reading starts with the first call
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!mStarted) {
+            mStarted = true;
+            sPumps.execute(this::pump);
+        }
+        while (mChunks.isEmpty()) {
+            if (mClosed) {
+                throw new ClosedChannelException();
+            }
+            if (mError != null) {
+                throw new IOException("read ahead failed", mError);
+            }
+            if (mEof) {
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        int n = 0;
+        while (dst.hasRemaining() && !mChunks.isEmpty()) {
+            ByteBuffer chunk = mChunks.peek();
+            int k = Math.min(chunk.remaining(), dst.remaining());
+            ByteBuffer part = chunk.duplicate();
+            part.limit(part.position() + k);
+            dst.put(part);
+            chunk.position(chunk.position() + k);
+            n += k;
+            if (!chunk.hasRemaining()) {
+                BufferPool.release(mChunks.poll());
+            }
+        }
+        mBuffered -= n;
+        notifyAll();
+        return n;
+    }
+
+    private void pump() {
+        while (true) {
+            synchronized (this) {
+                while (!mClosed && mBuffered >= WINDOW) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+            }
+
+            ByteBuffer chunk = BufferPool.acquire(CHUNK_SIZE);
+            boolean eof = false;
+            IOException error = null;
+            try {
+                while (chunk.hasRemaining()) {
+                    if (mSource.read(chunk) == -1) {
+                        eof = true;
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                if (mClosed || chunk.position() == 0) {
+                    BufferPool.release(chunk);
+                } else {
+                    chunk.flip();
+                    mChunks.add(chunk);
+                    mBuffered += chunk.remaining();
+                }
+                mEof = eof;
+                mError = error;
+                notifyAll();
+                if (mClosed || eof || error != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !mClosed;
+    }
+
+    // closes the source as well, which also wakes up a pending read on it
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            while (!mChunks.isEmpty()) {
+                BufferPool.release(mChunks.poll());
+            }
+            mBuffered = 0;
+            notifyAll();
+        }
+        mSource.close();
+    }
+}
@@ -0,0 +1,92 @@
+package com.filetransfer.kolibri.network;
+
+import com.filetransfer.kolibri.network.handler.ITransferHandler;
+
+import java.util.ArrayList;
+
+// bookkeeping shared by the connections that carry byte ranges of the same file,
+// the connections may be served by different loops
+public abstract class StripeGroup {
+    protected final FileTaskWrapper mTask;
+    private int mStripeCount = 1;
+    private final ArrayList<ITransferHandler> mActive = new ArrayList<>();
+    private int mLeft = 0;
+    private boolean mFailed = false;
+    private boolean mFinished = false;
+
+    protected StripeGroup(FileTaskWrapper task) {
+        mTask = task;
+    }
+
+    protected StripeGroup(FileTaskWrapper task, int stripeCount) {
+        mTask = task;
+        mStripeCount = stripeCount;
+    }
+
+    // must be called while the first stripe is the only one that joined
+    protected synchronized void setStripeCount(int stripeCount) {
+        mStripeCount = stripeCount;
+    }
+
+    public FileTaskWrapper task() {
+        return mTask;
+    }
+
+    public synchronized int stripeCount() {
+        return mStripeCount;
+    }
+
+    public synchronized boolean join(ITransferHandler stripe) {
+        if (mFailed || mFinished) {
+            return false;
+        }
+        mActive.add(stripe);
+        return true;
+    }
+
+    public void leave(ITransferHandler stripe, boolean completed) {
+        boolean succeeded;
+        synchronized (this) {
+            if (!mActive.remove(stripe)) {
+                return;
+            }
+            ++mLeft;
+            if (!completed) {
+                fail();
+            }
+            if (mFinished || (mLeft != mStripeCount && !(mFailed && mActive.isEmpty()))) {
+                return;
+            }
+            mFinished = true;
+            succeeded = !mFailed;
+        }
+        onFinished(succeeded);
+    }
+
+    public void abort() {
+        synchronized (this) {
+            fail();
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+        }
+        onFinished(false);
+    }
+
+    // must hold the lock
+    private void fail() {
+        if (mFailed) {
+            return;
+        }
+        mFailed = true;
+        // the file is useless unless every range made it, stop wasting the link on the others.
+        // they may live on other loops, each is aborted on its own
+        for (ITransferHandler other : mActive) {
+            other.loop().execute(other::abort);
+        }
+    }
+
+    // called once, outside of the lock
+    protected abstract void onFinished(boolean completed);
+}
@@ -0,0 +1,20 @@
+package com.filetransfer.kolibri.network;
+
+// the state of a file task as the transfer holds it in memory, ahead of what the database has stored
+public final class TaskProgress {
+    // the id of the task's FileEntry
+    public final long id;
+    public final String name;
+    public final long size;
+    public final long transferred;
+    // as in FileEntry
+    public final int status;
+
+    TaskProgress(long id, String name, long size, long transferred, int status) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.transferred = transferred;
+        this.status = status;
+    }
+}
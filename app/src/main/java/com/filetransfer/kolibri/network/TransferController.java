@@ -4,8 +4,8 @@ import static com.filetransfer.kolibri.misc.Util.closeSilently;
 
 import android.util.Log;
 
+import com.filetransfer.kolibri.db.DbExecutor;
 import com.filetransfer.kolibri.db.dao.FileDao;
-import com.filetransfer.kolibri.network.handler.ITransferHandler;
 import com.filetransfer.kolibri.network.handler.ReceiveHandler;
 import com.filetransfer.kolibri.network.handler.SendHandler;
 
@@ -14,21 +14,22 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 
 class TransferController {
 
-    class MultiplexTask implements Runnable {
+    class AcceptTask implements Runnable {
 
         final int mMyEpoch;
 
-        MultiplexTask(int epoch) {
+        AcceptTask(int epoch) {
             mMyEpoch = epoch;
         }
 
@@ -36,83 +37,39 @@ class TransferController {
         public void run() {
             try (ServerSocketChannel srv = ServerSocketChannel.open()) {
 
-                synchronized (MultiplexTask.this) {
+                synchronized (TransferController.this) {
                     if (mMyEpoch != mEpoch) {
                         return;
                     }
-                    srv.bind(new InetSocketAddress(NetProtocol.FILE_PORT));
+                    srv.bind(new InetSocketAddress(mPort));
+                    mBoundPort = srv.socket().getLocalPort();
                     mServerChannel = srv;
                 }
 
-                srv.configureBlocking(false);
-                srv.register(mSelector, SelectionKey.OP_ACCEPT);
-
+                // accepts block, stop() closes the channel to get the thread out
                 while (!Thread.interrupted()) {
-                    mSelector.select();
-
-                    synchronized (MultiplexTask.this) {
-                        if (mMyEpoch != mEpoch) {
-                            return;
-                        }
+                    SocketChannel cli = srv.accept();
 
-                        Iterator<ITransferHandler> iter = mNewHandlers.iterator();
-                        while (iter.hasNext()) {
-                            ITransferHandler handler = iter.next();
-                            iter.remove();
-                            if (handler.register(mSelector)) {
-                                mHandlers.add(handler);
-                            }
-                        }
+                    InetSocketAddress addr = (InetSocketAddress) cli.getRemoteAddress();
+                    if (!mPairAddr.equals(addr.getAddress())) {
+                        Log.w(TAG, "rejected another incoming transfer request with different pair address " + addr.getAddress());
+                        closeSilently(cli);
+                        continue;
                     }
+                    cli.configureBlocking(false);
 
-                    Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
-                    while (iter.hasNext()) {
-                        SelectionKey key = iter.next();
-                        iter.remove();
-
-                        if (key.isAcceptable()) {
-                            SocketChannel cli = srv.accept();
-                            cli.configureBlocking(false);
-
-                            ReceiveHandler handler = new ReceiveHandler(
-                                    new FileTaskWrapper(mDao, mCallback, mPairName),
-                                    cli,
-                                    mBaseDir);
-
-                            synchronized (MultiplexTask.this) {
-                                if (mMyEpoch != mEpoch) {
-                                    handler.abort();
-                                    return;
-                                }
-
-                                InetSocketAddress addr = (InetSocketAddress) cli.getRemoteAddress();
-                                if (!mPairAddr.equals(addr.getAddress())) {
-                                    Log.w(TAG, "rejected another incoming transfer request with different pair address " + addr.getAddress());
-                                    handler.abort();
-                                    continue;
-                                }
-
-                                if (handler.register(mSelector)) {
-                                    mHandlers.add(handler);
-                                }
-                            }
-                        } else if (key.isReadable() || key.isWritable() || key.isConnectable()) {
-                            ITransferHandler handler = (ITransferHandler) key.attachment();
-                            synchronized (MultiplexTask.this) {
-                                if (mMyEpoch != mEpoch) {
-                                    return;
-                                }
-
-                                if (!handler.onSelected(key)) {
-                                    mHandlers.remove(handler);
-                                }
-                            }
+                    synchronized (TransferController.this) {
+                        if (mMyEpoch != mEpoch) {
+                            closeSilently(cli);
+                            return;
                         }
+                        IoLoop loop = leastLoaded();
+                        loop.register(new ReceiveHandler(mIncoming, cli, loop));
                     }
                 }
             } catch (IOException e) {
-                if (!(e instanceof InterruptedIOException) && !Thread.interrupted()) {
-                    Log.e(TAG, "multiplexer may be unexpected stopped");
+                if (!(e instanceof InterruptedIOException) && !(e instanceof AsynchronousCloseException) && !Thread.interrupted()) {
+                    Log.e(TAG, "acceptor may be unexpected stopped");
                     e.printStackTrace();
                 }
             }
@@ -120,28 +77,43 @@ class TransferController {
     }
 
     private final String TAG = TransferController.class.getSimpleName();
-    private final Selector mSelector;
+    // a few loops keep the link busy, more would only compete with the ui for cores
+    private static final int IO_LOOPS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() / 2, 4));
+    // how often the progress of running tasks is stored, in ms
+    private static final long PROGRESS_INTERVAL = 1000;
     private final File mBaseDir;
     private final FileDao mDao;
     private final ITransferCallback mCallback;
-    private final HashSet<ITransferHandler> mHandlers = new HashSet<>();
-    private final LinkedList<ITransferHandler> mNewHandlers = new LinkedList<>();
+    private final ProgressSink mProgress;
+    // the transfer port, both ends use the same one. 0 binds any free port and sends to that, for talking to itself
+    private final int mPort;
+    private int mBoundPort;
+    private final Random mRandom = new Random();
+    private final TransferMonitor mMonitor = new TransferMonitor();
+    private final ArrayList<IoLoop> mLoops = new ArrayList<>();
     private boolean isRunning = false;
     private InetAddress mPairAddr;
-    private Thread mMultiplexThread;
+    private Thread mAcceptThread;
     private ServerSocketChannel mServerChannel;
     private String mPairName;
+    private IncomingFileRegistry mIncoming;
     private int mEpoch = 0;
+    private volatile boolean mCompress = false;
 
     public TransferController(File baseDir, FileDao dao, ITransferCallback callback) {
-        try {
-            mSelector = Selector.open();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        this(baseDir, dao, callback, NetProtocol.FILE_PORT);
+    }
+
+    TransferController(File baseDir, FileDao dao, ITransferCallback callback, int port) {
+        this(baseDir, dao, callback, port, PROGRESS_INTERVAL);
+    }
+
+    TransferController(File baseDir, FileDao dao, ITransferCallback callback, int port, long progressInterval) {
         mBaseDir = baseDir;
         mDao = dao;
         mCallback = callback;
+        mPort = port;
+        mProgress = new ProgressSink(dao, progressInterval);
     }
 
     void start(InetAddress pairAddr, String pairName) {
@@ -150,16 +122,30 @@ class TransferController {
                 return;
             }
 
-            mDao.abortAllRunningTasks();
+            try {
+                for (int i = 0; i < IO_LOOPS; ++i) {
+                    mLoops.add(new IoLoop("transfer-io-" + i, mMonitor));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            for (IoLoop loop : mLoops) {
+                loop.start();
+            }
+
+            DbExecutor.execute(mDao::abortAllRunningTasks);
             isRunning = true;
             mPairName = pairName;
             mPairAddr = pairAddr;
-            mMultiplexThread = new Thread(new MultiplexTask(mEpoch));
-            mMultiplexThread.start();
+            mIncoming = new IncomingFileRegistry(mBaseDir, mProgress, mCallback, pairName);
+            mIncoming.sweep();
+            mAcceptThread = new Thread(new AcceptTask(mEpoch), "transfer-accept");
+            mAcceptThread.start();
         }
     }
 
     void stop() {
+        ArrayList<IoLoop> loops;
         synchronized (this) {
             if (!isRunning) {
                 return;
@@ -167,7 +153,7 @@ class TransferController {
 
             isRunning = false;
             mEpoch += 1;
-            mMultiplexThread.interrupt();
+            mAcceptThread.interrupt();
 
             if (mServerChannel != null) {
                 // force close the server channel to release listening port
@@ -175,39 +161,136 @@ class TransferController {
                 mServerChannel = null;
             }
 
-            //  key set is not thread-safe in java 8, will throw ConcurrentModificationException
-//            for (SelectionKey key : mSelector.keys()) {
-//                Object handler = key.attachment();
-//                if (handler instanceof ITransferHandler) {
-//                    ((ITransferHandler) handler).abort();
-//                }
-//            }
-
-            for (ITransferHandler handler : mHandlers) {
-                handler.abort();
+            // every loop aborts its own handlers on the way out
+            for (IoLoop loop : mLoops) {
+                loop.shutdown();
             }
-            for (ITransferHandler handler : mNewHandlers) {
-                handler.abort();
+            loops = new ArrayList<>(mLoops);
+            mLoops.clear();
+            mIncoming.abortAll();
+        }
+        // the tasks are settled once the loops are gone
+        for (IoLoop loop : loops) {
+            loop.join();
+        }
+    }
+
+    // the transfer port is bound, peers may connect
+    synchronized boolean isAccepting() {
+        return mServerChannel != null;
+    }
+
+    ProgressSink progress() {
+        return mProgress;
+    }
+
+    TransferMonitor monitor() {
+        return mMonitor;
+    }
+
+    // must hold the controller lock
+    private InetSocketAddress pairAddr() {
+        return new InetSocketAddress(mPairAddr, mPort != 0 ? mPort : mBoundPort);
+    }
+
+    // must hold the controller lock
+    private IoLoop leastLoaded() {
+        IoLoop best = mLoops.get(0);
+        int bestLoad = best.load();
+        for (int i = 1; i < mLoops.size(); ++i) {
+            int load = mLoops.get(i).load();
+            if (load < bestLoad) {
+                best = mLoops.get(i);
+                bestLoad = load;
             }
-            mHandlers.clear();
         }
+        return best;
     }
 
     void sendFile(ILocalFile file) {
+        sendFiles(Collections.singletonList(file));
+    }
+
+    // deflate file bodies that are not compressed already, applies to transfers started afterwards
+    void setCompression(boolean compress) {
+        mCompress = compress;
+    }
 
-        SendHandler handler = new SendHandler(
-                new FileTaskWrapper(mDao, mCallback, mPairName),
-                file,
-                mPairAddr);
+    // files are taken from the iterator only as the session goes, a directory walk never has to finish up front
+    void sendTree(Iterator<ILocalFile> files) {
+        Iterator<OutgoingFile> source = new Iterator<OutgoingFile>() {
+            @Override
+            public boolean hasNext() {
+                return files.hasNext();
+            }
+
+            @Override
+            public OutgoingFile next() {
+                // striping would need connections of its own, keep the whole tree in one session
+                return OutgoingFile.create(
+                        files.next(),
+                        mRandom.nextLong(),
+                        new FileTaskWrapper(mProgress, mCallback, mPairName));
+            }
+        };
 
         synchronized (this) {
             if (!isRunning) {
-                handler.abort();
                 return;
             }
 
-            mNewHandlers.offer(handler);
-            mSelector.wakeup();
+            IoLoop loop = leastLoaded();
+            loop.register(new SendHandler(source, pairAddr(), mCompress, loop));
+        }
+    }
+
+    void sendFiles(List<ILocalFile> files) {
+        ArrayList<OutgoingFile> outgoingFiles = new ArrayList<>();
+        for (ILocalFile file : files) {
+            outgoingFiles.add(OutgoingFile.create(
+                    file,
+                    mRandom.nextLong(),
+                    new FileTaskWrapper(mProgress, mCallback, mPairName),
+                    this::sendStripes));
+        }
+
+        synchronized (this) {
+            if (!isRunning) {
+                for (OutgoingFile outgoing : outgoingFiles) {
+                    outgoing.abort();
+                }
+                return;
+            }
+
+            ArrayList<OutgoingFile> batch = new ArrayList<>();
+            for (OutgoingFile outgoing : outgoingFiles) {
+                if (!outgoing.mayStripe()) {
+                    batch.add(outgoing);
+                    continue;
+                }
+                // large files may be split into ranges sent over parallel connections, this one carries the first
+                IoLoop loop = leastLoaded();
+                loop.register(new SendHandler(Collections.singletonList(outgoing), 0, pairAddr(), mCompress, loop));
+            }
+            if (!batch.isEmpty()) {
+                // everything else goes back to back over a single connection
+                IoLoop loop = leastLoaded();
+                loop.register(new SendHandler(batch, 0, pairAddr(), mCompress, loop));
+            }
+        }
+    }
+
+    // called from a disk worker once a file turned out to be striped, the other ranges are spread over the loops
+    private void sendStripes(OutgoingFile outgoing) {
+        synchronized (this) {
+            if (isRunning) {
+                for (int i = 1; i < outgoing.stripeCount(); ++i) {
+                    IoLoop loop = leastLoaded();
+                    loop.register(new SendHandler(Collections.singletonList(outgoing), i, pairAddr(), mCompress, loop));
+                }
+                return;
+            }
         }
+        outgoing.abort();
     }
 }
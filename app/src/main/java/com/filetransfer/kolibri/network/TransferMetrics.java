@@ -0,0 +1,175 @@
+package com.filetransfer.kolibri.network;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// where the time of one transfer connection goes, to tell a slow link from slow storage or a busy loop. recorded on
+// the loop of the connection, read from any thread through snapshot()
+public class TransferMetrics {
+    private static final long SECOND_NS = 1_000_000_000L;
+    // the sliding window throughput is taken over, in seconds
+    private static final int WINDOW = 10;
+    private static final double MIB = 1024 * 1024;
+
+    public static class Snapshot {
+        public final String direction;
+        public final int stripe;
+        public final String file;
+        public final int files;
+        public final long bytes;
+        public final long elapsedNs;
+        // connecting and handshaking, -1 until done
+        public final long setupNs;
+        // throughput of the last full second, of the sliding window and of the whole transfer
+        public final long lastSecondRate;
+        public final long windowRate;
+        public final long averageRate;
+        // waiting for the disk stage, handling selections on the loop, and the rest: waiting for the socket
+        public final long diskWaitNs;
+        public final long loopNs;
+        public final long socketWaitNs;
+        public final long wakeups;
+        public final boolean finished;
+
+        private Snapshot(TransferMetrics m, long now) {
+            direction = m.mDirection;
+            stripe = m.mStripe;
+            file = m.mFile;
+            files = m.mFiles;
+            bytes = m.mBytes;
+            long end = m.mFinishedAt >= 0 ? m.mFinishedAt : now;
+            elapsedNs = end - m.mCreatedAt;
+            setupNs = m.mSetupNs;
+            long second = end / SECOND_NS;
+            lastSecondRate = m.bucket(second - 1);
+            long covered = Math.min(WINDOW, second - m.mCreatedAt / SECOND_NS);
+            long windowBytes = 0;
+            for (int i = 1; i <= covered; ++i) {
+                windowBytes += m.bucket(second - i);
+            }
+            windowRate = covered <= 0 ? 0 : windowBytes / covered;
+            averageRate = elapsedNs <= 0 ? 0 : (long) (bytes * (double) SECOND_NS / elapsedNs);
+            diskWaitNs = m.mDiskWaitNs + (m.mDiskWaitSince >= 0 ? end - m.mDiskWaitSince : 0);
+            loopNs = m.mLoopNs;
+            socketWaitNs = Math.max(0, elapsedNs - Math.max(setupNs, 0) - diskWaitNs - loopNs);
+            wakeups = m.mWakeups;
+            finished = m.mFinishedAt >= 0;
+        }
+
+        public double wakeupsPerMiB() {
+            return bytes == 0 ? 0 : wakeups * MIB / bytes;
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("direction", direction);
+            o.put("stripe", stripe);
+            o.put("file", file == null ? JSONObject.NULL : file);
+            o.put("files", files);
+            o.put("bytes", bytes);
+            o.put("elapsed_ms", elapsedNs / 1_000_000);
+            o.put("setup_ms", setupNs < 0 ? -1 : setupNs / 1_000_000);
+            o.put("last_second_bps", lastSecondRate);
+            o.put("window_bps", windowRate);
+            o.put("average_bps", averageRate);
+            o.put("disk_wait_ms", diskWaitNs / 1_000_000);
+            o.put("loop_ms", loopNs / 1_000_000);
+            o.put("socket_wait_ms", socketWaitNs / 1_000_000);
+            o.put("wakeups", wakeups);
+            o.put("wakeups_per_mib", wakeupsPerMiB());
+            o.put("finished", finished);
+            return o;
+        }
+    }
+
+    private final String mDirection;
+    private final int mStripe;
+    private final long mCreatedAt = System.nanoTime();
+    // guarded by this
+    private long mSetupNs = -1;
+    private String mFile;
+    private int mFiles = 0;
+    private long mBytes = 0;
+    // bytes per second of the last WINDOW seconds, by second % WINDOW
+    private final long[] mBuckets = new long[WINDOW];
+    private final long[] mBucketSeconds = new long[WINDOW];
+    private long mDiskWaitNs = 0;
+    private long mDiskWaitSince = -1;
+    private long mLoopNs = 0;
+    private long mWakeups = 0;
+    private long mFinishedAt = -1;
+
+    public TransferMetrics(String direction, int stripe) {
+        mDirection = direction;
+        mStripe = stripe;
+    }
+
+    // the handshake is done, data follows
+    public synchronized void onConnected() {
+        if (mSetupNs < 0) {
+            mSetupNs = System.nanoTime() - mCreatedAt;
+        }
+    }
+
+    public synchronized void onFile(String name) {
+        mFile = name;
+        ++mFiles;
+    }
+
+    // bytes that went through the socket
+    public synchronized void onTransferred(long n) {
+        if (n <= 0) {
+            return;
+        }
+        mBytes += n;
+        long second = System.nanoTime() / SECOND_NS;
+        int i = (int) (second % WINDOW);
+        if (mBucketSeconds[i] != second) {
+            mBucketSeconds[i] = second;
+            mBuckets[i] = 0;
+        }
+        mBuckets[i] += n;
+    }
+
+    // one selection handled by the loop, in ns
+    synchronized void onSelected(long ns) {
+        ++mWakeups;
+        mLoopNs += ns;
+    }
+
+    // the handler stops selecting until the disk stage catches up
+    public synchronized void onDiskWait() {
+        if (mDiskWaitSince < 0) {
+            mDiskWaitSince = System.nanoTime();
+        }
+    }
+
+    public synchronized void onDiskReady() {
+        if (mDiskWaitSince >= 0) {
+            mDiskWaitNs += System.nanoTime() - mDiskWaitSince;
+            mDiskWaitSince = -1;
+        }
+    }
+
+    public synchronized void onFinished() {
+        if (mFinishedAt >= 0) {
+            return;
+        }
+        onDiskReady();
+        mFinishedAt = System.nanoTime();
+    }
+
+    synchronized boolean finished() {
+        return mFinishedAt >= 0;
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(this, System.nanoTime());
+    }
+
+    // must hold the lock
+    private long bucket(long second) {
+        int i = (int) (second % WINDOW);
+        return mBucketSeconds[i] == second ? mBuckets[i] : 0;
+    }
+}
@@ -0,0 +1,63 @@
+package com.filetransfer.kolibri.network;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// the metrics of the transfer connections that are open and of the last ones that finished
+public class TransferMonitor {
+    private static final int MAX_FINISHED = 32;
+    // guarded by this
+    private final ArrayList<TransferMetrics> mActive = new ArrayList<>();
+    private final ArrayDeque<TransferMetrics> mFinished = new ArrayDeque<>();
+
+    synchronized void add(TransferMetrics metrics) {
+        retire();
+        mActive.add(metrics);
+    }
+
+    // open connections first, then the finished ones from the most recent
+    public synchronized List<TransferMetrics.Snapshot> snapshot() {
+        retire();
+        ArrayList<TransferMetrics.Snapshot> snapshots = new ArrayList<>();
+        for (TransferMetrics metrics : mActive) {
+            snapshots.add(metrics.snapshot());
+        }
+        for (TransferMetrics metrics : mFinished) {
+            snapshots.add(metrics.snapshot());
+        }
+        return snapshots;
+    }
+
+    public String toJson() {
+        JSONArray array = new JSONArray();
+        try {
+            for (TransferMetrics.Snapshot snapshot : snapshot()) {
+                array.put(snapshot.toJson());
+            }
+        } catch (JSONException e) {
+            // only thrown for non-finite numbers
+            throw new IllegalStateException(e);
+        }
+        return array.toString();
+    }
+
+    // must hold the lock
+    private void retire() {
+        Iterator<TransferMetrics> iter = mActive.iterator();
+        while (iter.hasNext()) {
+            TransferMetrics metrics = iter.next();
+            if (metrics.finished()) {
+                iter.remove();
+                mFinished.addFirst(metrics);
+                if (mFinished.size() > MAX_FINISHED) {
+                    mFinished.removeLast();
+                }
+            }
+        }
+    }
+}
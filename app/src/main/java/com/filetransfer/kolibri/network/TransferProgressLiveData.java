@@ -0,0 +1,54 @@
+package com.filetransfer.kolibri.network;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.LiveData;
+
+import java.util.List;
+
+// the progress of the running and just finished tasks, taken from memory at a rate the list can follow. ticks only
+// while observed and while there is something to report
+class TransferProgressLiveData extends LiveData<List<TaskProgress>> {
+    private static final long INTERVAL = 500;
+    private final ProgressSink mSink;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mTick = this::tick;
+    private boolean mTicking = false;
+
+    TransferProgressLiveData(ProgressSink sink) {
+        mSink = sink;
+    }
+
+    // a task started, main thread only
+    void kick() {
+        if (!mTicking && hasActiveObservers()) {
+            mTicking = true;
+            mHandler.post(mTick);
+        }
+    }
+
+    @Override
+    protected void onActive() {
+        kick();
+    }
+
+    @Override
+    protected void onInactive() {
+        mHandler.removeCallbacks(mTick);
+        mTicking = false;
+    }
+
+    private void tick() {
+        List<TaskProgress> progress = mSink.snapshot();
+        if (!progress.isEmpty()) {
+            setValue(progress);
+        }
+        // a task finishing after the snapshot is still recent, so the final state is never missed
+        if (mSink.idle()) {
+            mTicking = false;
+        } else {
+            mHandler.postDelayed(mTick, INTERVAL);
+        }
+    }
+}
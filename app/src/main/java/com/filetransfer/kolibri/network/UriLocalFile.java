@@ -0,0 +1,72 @@
+package com.filetransfer.kolibri.network;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.filetransfer.kolibri.misc.Util;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+// a document opened through the content resolver when it is about to be sent, a large batch would exhaust descriptors otherwise
+public class UriLocalFile implements ILocalFile {
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String mName;
+    private final long mSize;
+    private ParcelFileDescriptor mFd;
+    private FileInputStream mStream;
+    private ReadAheadChannel mReadAhead;
+
+    public UriLocalFile(ContentResolver resolver, Uri uri, String name, long size) {
+        mResolver = resolver;
+        mUri = uri;
+        mName = name;
+        mSize = size;
+    }
+
+    @Override
+    public String name() {
+        return mName;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public FileInputStream stream() throws IOException {
+        if (mStream == null) {
+            mFd = mResolver.openFileDescriptor(mUri, "r");
+            if (mFd == null) {
+                throw new FileNotFoundException("no descriptor for " + mUri);
+            }
+            mStream = new FileInputStream(mFd.getFileDescriptor());
+        }
+        return mStream;
+    }
+
+    // providers often hand out pipes whose every read may wait on the network, keep them busy ahead of the sender
+    @Override
+    public ReadableByteChannel sequential() throws IOException {
+        if (mReadAhead == null) {
+            mReadAhead = new ReadAheadChannel(stream().getChannel());
+        }
+        return mReadAhead;
+    }
+
+    @Override
+    public void close() {
+        if (mReadAhead != null) {
+            Util.closeSilently(mReadAhead);
+        }
+        if (mStream != null) {
+            Util.closeSilently(mStream);
+            Util.closeSilently(mFd);
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package com.filetransfer.kolibri.network.handler;
 
+import com.filetransfer.kolibri.network.TransferMetrics;
+
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.concurrent.Executor;
 
 public interface ITransferHandler {
-    boolean register(Selector selector);
+    // onTerminated runs on the thread of loop() once the handler is done, whichever way it ends
+    boolean register(Selector selector, Runnable onTerminated);
     boolean onSelected(SelectionKey key);
-    // it is guaranteed that onSelected() and abort() will always be called AFTER register() is called
+    // it is guaranteed that onSelected() will always be called AFTER register() is called,
+    // onSelected() and abort() are both called on the thread of loop()
     void abort();
+    // other threads reach the handler through this
+    Executor loop();
+    TransferMetrics metrics();
 }
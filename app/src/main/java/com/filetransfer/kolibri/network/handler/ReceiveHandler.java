@@ -4,44 +4,110 @@ import static com.filetransfer.kolibri.misc.Util.closeSilently;
 
 import android.util.Log;
 
-import com.filetransfer.kolibri.network.FileTaskWrapper;
+import com.filetransfer.kolibri.network.BlockCodec;
+import com.filetransfer.kolibri.network.BlockSizeTuner;
+import com.filetransfer.kolibri.network.BufferPool;
+import com.filetransfer.kolibri.network.DiskStage;
+import com.filetransfer.kolibri.network.FrameCodec;
+import com.filetransfer.kolibri.network.IncomingFile;
+import com.filetransfer.kolibri.network.IncomingFileRegistry;
+import com.filetransfer.kolibri.network.ManifestEntry;
 import com.filetransfer.kolibri.network.NetProtocol;
+import com.filetransfer.kolibri.network.RangeChecksum;
+import com.filetransfer.kolibri.network.TransferMetrics;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
 
+// receives a session: manifests of file ranges, each followed by the bodies of the ranges in order
 public class ReceiveHandler implements ITransferHandler {
     private static final String TAG = ReceiveHandler.class.getSimpleName();
-    private final FileTaskWrapper mTask;
-    private final File mBaseDir;
+    // states, in session order
+    private static final int HANDSHAKE = 0;
+    private static final int MANIFEST_SIZE = 1;
+    private static final int MANIFEST = 2;
+    private static final int OPENING = 3;
+    private static final int ANSWER = 4;
+    private static final int OFFER = 5;
+    private static final int ADOPTING = 6;
+    private static final int OFFER_ANSWER = 7;
+    private static final int CONTENT = 8;
+    private static final int TRAILER_SIZE = 9;
+    private static final int TRAILER = 10;
+    private static final int VERIFYING = 11;
+    // file count, max block size
+    private static final int MANIFEST_FIXED_LEN = 4 + 4;
+    // written bytes between two checkpoints of the file being received
+    private static final long CHECKPOINT_INTERVAL = 16L * 1024 * 1024;
+    // bytes moved by one transferFrom() job
+    private static final long MAX_SPLICE = 4 * 1024 * 1024;
+    private final IncomingFileRegistry mRegistry;
     private final SocketChannel mChannel;
-    private FileOutputStream mFileStream;
-    private File mFile;
-    private final ByteBuffer mBuf = ByteBuffer.allocate(NetProtocol.FILE_BLK_SIZE);
-    private int mState = 0;
+    // results of background work come back through it
+    private final Executor mLoop;
+    private IncomingFile[] mFiles = new IncomingFile[0];
+    private long[] mFilePos;
+    private long[] mRangeStart;
+    private long[] mRangeRemaining;
+    private int[] mCodecs;
+    // files before this one have already left
+    private int mCurrent = 0;
+    private ByteBuffer mBuf;
+    private BlockSizeTuner mTuner;
+    private BlockCodec mCodec;
+    // writes deflated blocks behind and splices raw bodies
+    private DiskStage mStage;
+    private ByteBuffer mIn;
+    // the ring is full, reading resumes once a block is written
+    private boolean mPaused = false;
+    private long mSinceCheckpoint = 0;
+    private RangeChecksum mChecksum;
+    // files that may be taken from local copies or kept parts
+    private final ArrayList<Integer> mOffered = new ArrayList<>();
+    private RangeChecksum[] mLocalChecksums;
+    // how far into each range the offer goes
+    private long[] mOfferedLen;
+    private int[][] mOfferedChecksums;
+    private int mOfferLen = 0;
+    private int mHashing = 0;
+    private SelectionKey mKey;
+    private final TransferMetrics mMetrics = new TransferMetrics("receive", 0);
+    // -1 while waiting for a block header
+    private int mBlockRawLen = -1;
+    private int mBlockStoredLen;
+    private int mState = HANDSHAKE;
+    private boolean mTerminated = false;
+    // tells the loop to forget this handler
+    private Runnable mOnTerminated;
 
     public ReceiveHandler(
-            FileTaskWrapper task,
+            IncomingFileRegistry registry,
             SocketChannel channel,
-            File baseDir) {
+            Executor loop) {
 //        Log.i(TAG, "created");
-        mBaseDir = baseDir;
-        mTask = task;
+        mRegistry = registry;
         mChannel = channel;
+        mLoop = guard(loop);
     }
 
-    public boolean register(Selector selector) {
+    public boolean register(Selector selector, Runnable onTerminated) {
 //        Log.i(TAG, "registered");
-        mBuf.limit(4);
+        mOnTerminated = onTerminated;
+        mBuf = BufferPool.acquire(NetProtocol.MAX_MANIFEST_LEN);
+        mBuf.limit(NetProtocol.HANDSHAKE_HEADER.length);
+        mStage = new DiskStage(mLoop, this::onDiskFailed);
         try {
-            mChannel.register(selector, SelectionKey.OP_READ, this);
+            mKey = mChannel.register(selector, SelectionKey.OP_READ, this);
         } catch (ClosedChannelException e) {
             e.printStackTrace();
             abort();
@@ -53,63 +119,139 @@ public class ReceiveHandler implements ITransferHandler {
     public boolean onSelected(SelectionKey key) {
 //        Log.i(TAG, "selected");
         try {
+            if (mState == CONTENT) {
+                return mCodecs[mCurrent] == NetProtocol.CODEC_DEFLATE ? receiveBlock(key) : receiveContent(key);
+            }
+
+            if (mState == ANSWER || mState == OFFER_ANSWER) {
+                mChannel.write(mBuf);
+                if (!mBuf.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    if (!mOffered.isEmpty()) {
+                        if (mBuf.capacity() < mOfferLen) {
+                            BufferPool.release(mBuf);
+                            mBuf = BufferPool.acquire(mOfferLen);
+                        }
+                        mBuf.clear();
+                        mBuf.limit(mOfferLen);
+                        mState = OFFER;
+                        return true;
+                    }
+                    return nextFile();
+                }
+                return true;
+            }
+
             if (mBuf.hasRemaining()) {
                 if (mChannel.read(mBuf) == -1) {
-                    Log.w(TAG, "EOF size=" + mTask.size() + " remaining=" + mTask.remaining() + " buf=" + mBuf.remaining());
+                    if (mState == MANIFEST_SIZE && mBuf.position() == 0) {
+                        // the sender is done
+                        terminate(true);
+                        return false;
+                    }
+                    Log.w(TAG, "EOF in state=" + mState + " buf=" + mBuf.remaining());
                     abort();
                     return false;
                 }
-                return true;
+                if (mBuf.hasRemaining()) {
+                    return true;
+                }
+                // nothing more comes before the answer
             }
 
             mBuf.flip();
             switch (mState) {
-                case 0: { // filename size
-                    int fileNameLength = mBuf.getInt(); // TODO restrict
-//                    Log.e(TAG, "fileNameLength=" + fileNameLength);
-                    mBuf.limit(fileNameLength);
-                    mState = 1;
-                    break;
+                case HANDSHAKE: {
+                    FrameCodec.checkHandshake(mBuf);
+                    mMetrics.onConnected();
+                    mBuf.clear();
+                    mBuf.limit(4);
+                    mState = MANIFEST_SIZE;
+                    return true;
+                }
+                case MANIFEST_SIZE: {
+                    int manifestLen = FrameCodec.getLength(mBuf, MANIFEST_FIXED_LEN, NetProtocol.MAX_MANIFEST_LEN, "manifest");
+                    mBuf.clear();
+                    mBuf.limit(manifestLen);
+                    mState = MANIFEST;
+                    return true;
                 }
-                case 1: {// filename
-                    byte[] fileNameBytes = new byte[mBuf.limit()];
-                    mBuf.get(fileNameBytes);
-
-                    String fileName = new String(fileNameBytes, StandardCharsets.UTF_8);
-                    mFile = new File(mBaseDir, fileName);
-                    while (mFile.exists()) {
-                        fileName = "_" + fileName;
-                        mFile = new File(mBaseDir, fileName);
+                case MANIFEST: { // file count, max block size, entries
+                    int fileCount = FrameCodec.getLength(mBuf, 1, NetProtocol.MAX_MANIFEST_FILES, "file list");
+                    int maxBlockSize = Math.min(mBuf.getInt(), NetProtocol.MAX_FILE_BLK_SIZE);
+                    ArrayList<ManifestEntry> entries = new ArrayList<>(fileCount);
+                    for (int i = 0; i < fileCount; ++i) {
+                        entries.add(ManifestEntry.read(mBuf));
                     }
-
-                    mBuf.limit(8);
-                    mState = 2;
-                    break;
+//                    Log.e(TAG, "manifest files=" + fileCount);
+                    // opened off the loop
+                    key.interestOps(0);
+                    mState = OPENING;
+                    mRegistry.openAll(entries).whenCompleteAsync(
+                            (files, e) -> onOpened(entries, maxBlockSize, files, e), mLoop);
+                    return true;
                 }
-                case 2: { // file size
-                    long fileSize = mBuf.getLong();
-//                    Log.e(TAG, "fileSize=" + fileSize);
-                    mState = 3;
-                    mFileStream = new FileOutputStream(mFile);
-
-                    mTask.start(mFile.getName(), mBaseDir.getAbsolutePath(), fileSize, false);
-                    mBuf.limit((int) Math.min(NetProtocol.FILE_BLK_SIZE, mTask.remaining()));
-                    break;
+                case OFFER: { // crc32 of the offered segments
+                    mOfferedChecksums = new int[mOffered.size()][];
+                    for (int k = 0; k < mOffered.size(); ++k) {
+                        int i = mOffered.get(k);
+                        boolean valid = mBuf.getInt() != 0;
+                        int[] checksums = new int[mLocalChecksums[i].segmentCount()];
+                        for (int j = 0; j < offeredSegments(i); ++j) {
+                            checksums[j] = mBuf.getInt();
+                        }
+                        mOfferedChecksums[k] = valid ? checksums : null;
+                    }
+                    key.interestOps(0);
+                    mState = ADOPTING;
+                    ArrayList<RangeChecksum> pending = new ArrayList<>();
+                    for (int i : mOffered) {
+                        if (mFiles[i].candidate() != null) {
+                            pending.add(mLocalChecksums[i]);
+                        }
+                    }
+                    if (pending.isEmpty()) {
+                        adoptOffered();
+                        return !mTerminated;
+                    }
+                    mHashing = pending.size();
+                    for (RangeChecksum checksum : pending) {
+                        checksum.whenDone(mLoop, () -> {
+                            if (--mHashing == 0) {
+                                adoptOffered();
+                            }
+                        });
+                    }
+                    return !mTerminated;
                 }
-                case 3: { // file content
-                    mFileStream.getChannel().write(mBuf);
-
-                    if (mTask.proceed(mBuf.limit())) {
-                        // completed
-                        terminate(true);
-                        return false;
+                case TRAILER_SIZE: {
+                    int count = mBuf.getInt();
+                    if (count != mChecksum.segmentCount()) {
+                        throw new IOException("bad checksum count " + count + ", expected " + mChecksum.segmentCount());
                     }
-
-                    mBuf.limit((int) Math.min(NetProtocol.FILE_BLK_SIZE, mTask.remaining()));
-                    break;
+                    if (4 + 4 * (long) count > NetProtocol.MAX_FILE_BLK_SIZE) {
+                        throw new IOException("range too large to verify");
+                    }
+                    if (mBuf.capacity() < 4 * count) {
+                        BufferPool.release(mBuf);
+                        mBuf = BufferPool.acquire(4 * count);
+                    }
+                    mBuf.clear();
+                    mBuf.limit(4 * count);
+                    mState = TRAILER;
+                    return true;
+                }
+                case TRAILER: { // crc32 of every segment
+                    int[] expected = new int[mChecksum.segmentCount()];
+                    for (int i = 0; i < expected.length; ++i) {
+                        expected[i] = mBuf.getInt();
+                    }
+                    key.interestOps(0);
+                    mState = VERIFYING;
+                    mChecksum.whenDone(mLoop, () -> verify(expected));
+                    return !mTerminated;
                 }
             }
-            mBuf.rewind();
         } catch (IOException e) {
             e.printStackTrace();
             abort();
@@ -118,16 +260,560 @@ public class ReceiveHandler implements ITransferHandler {
         return true;
     }
 
+    private void onOpened(ArrayList<ManifestEntry> entries, int maxBlockSize, IncomingFile[] files, Throwable e) {
+        if (mTerminated) {
+            if (files != null) {
+                // never joined, other stripes would wait for them
+                for (IncomingFile file : files) {
+                    file.abort();
+                }
+            }
+            return;
+        }
+        if (e != null) {
+            Log.w(TAG, "cannot open the files of the manifest");
+            e.printStackTrace();
+            abort();
+            return;
+        }
+        try {
+            answer(entries, maxBlockSize, files);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            abort();
+        }
+    }
+
+    // how much of every range is already here
+    private void answer(ArrayList<ManifestEntry> entries, int maxBlockSize, IncomingFile[] files) throws IOException {
+        if (!joinFiles(files)) {
+            return;
+        }
+        if (mTuner == null) {
+            mTuner = new BlockSizeTuner(mChannel.socket().getReceiveBufferSize(), maxBlockSize);
+        }
+
+        int fileCount = files.length;
+        mBuf.clear();
+        mLocalChecksums = new RangeChecksum[fileCount];
+        mOfferedLen = new long[fileCount];
+        mOfferLen = 0;
+        ArrayList<IncomingFile> unoffered = new ArrayList<>();
+        for (int i = 0; i < fileCount; ++i) {
+            ManifestEntry entry = entries.get(i);
+            mRangeStart[i] = entry.rangeOffset;
+            mCodecs[i] = entry.codec;
+            if (mFiles[i].noSpace()) {
+                // the sender skips it
+                mFilePos[i] = entry.rangeOffset + entry.rangeLength;
+                mRangeRemaining[i] = 0;
+                mBuf.putLong(NetProtocol.ANSWER_NO_SPACE);
+                continue;
+            }
+            if (mFiles[i].candidate() != null) {
+                long end = entry.rangeOffset + entry.rangeLength;
+                long len = 4 + 4L * RangeChecksum.segmentCount(entry.rangeOffset, end);
+                if (mOfferLen + len <= NetProtocol.MAX_FILE_BLK_SIZE) {
+                    // hashed while the sender hashes its file
+                    mOfferLen += len;
+                    mOffered.add(i);
+                    mOfferedLen[i] = entry.rangeLength;
+                    mLocalChecksums[i] = new RangeChecksum(mFiles[i].candidateChannel(), 0, entry.rangeOffset, end);
+                    mLocalChecksums[i].advance(end);
+                    mFilePos[i] = entry.rangeOffset;
+                    mRangeRemaining[i] = entry.rangeLength;
+                    mBuf.putLong(NetProtocol.ANSWER_OFFER);
+                    continue;
+                }
+                unoffered.add(mFiles[i]);
+            }
+            long end = entry.rangeOffset + entry.rangeLength;
+            long resumeOffset = mFiles[i].resumeOffset(entry.rangeOffset, end);
+            int[] kept = mFiles[i].resumedChecksums(entry.rangeOffset, end);
+            long len = 4 + 4L * kept.length;
+            if (resumeOffset > 0 && mOfferLen + len <= NetProtocol.MAX_FILE_BLK_SIZE) {
+                // the fingerprint may miss an edit, keep only what the sender's checksums confirm
+                mOfferLen += len;
+                mOffered.add(i);
+                mLocalChecksums[i] = new RangeChecksum(entry.rangeOffset, end);
+                mLocalChecksums[i].preset(kept);
+                mOfferedLen[i] = kept.length == 0 ? 0 : mLocalChecksums[i].segmentEnd(kept.length - 1) - entry.rangeOffset;
+                mFilePos[i] = entry.rangeOffset;
+                mRangeRemaining[i] = entry.rangeLength;
+                mBuf.putLong(NetProtocol.ANSWER_OFFER);
+                continue;
+            }
+            mFilePos[i] = entry.rangeOffset + resumeOffset;
+            mRangeRemaining[i] = entry.rangeLength - resumeOffset;
+            mBuf.putLong(resumeOffset);
+        }
+        for (int i : mOffered) {
+            mBuf.putLong(mOfferedLen[i]);
+        }
+        mBuf.flip();
+        mState = ANSWER;
+        if (unoffered.isEmpty()) {
+            mKey.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        // they get files of their own first
+        mRegistry.adoptAll(unoffered, new long[unoffered.size()]).whenCompleteAsync((v, e) -> {
+            if (mTerminated) {
+                return;
+            }
+            if (e != null) {
+                e.printStackTrace();
+                abort();
+                return;
+            }
+            mKey.interestOps(SelectionKey.OP_WRITE);
+        }, mLoop);
+    }
+
+    // false if the handler gave up
+    private boolean joinFiles(IncomingFile[] files) {
+        mFiles = files;
+        mFilePos = new long[files.length];
+        mRangeStart = new long[files.length];
+        mRangeRemaining = new long[files.length];
+        mCodecs = new int[files.length];
+        mCurrent = 0;
+        for (int i = 0; i < files.length; ++i) {
+            if (!files[i].join(this)) {
+                // another stripe failed
+                mFiles = Arrays.copyOf(files, i);
+                abort();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // moves to the first range that still needs data, or to the next manifest
+    private boolean nextFile() {
+        while (mCurrent < mFiles.length && mRangeRemaining[mCurrent] == 0) {
+            IncomingFile file = mFiles[mCurrent++];
+            file.leave(this, !file.noSpace());
+            if (mTerminated) {
+                return false;
+            }
+        }
+        if (mCurrent < mFiles.length) {
+            // a kept part is checked as well, the checkpoint has the checksums of most of it
+            IncomingFile file = mFiles[mCurrent];
+            mMetrics.onFile(file.file().getName());
+            long end = mFilePos[mCurrent] + mRangeRemaining[mCurrent];
+            mChecksum = new RangeChecksum(file.channel(), 0, mRangeStart[mCurrent], end);
+            mChecksum.preset(file.resumedChecksums(mRangeStart[mCurrent], end));
+            mChecksum.advance(mFilePos[mCurrent]);
+            file.track(mRangeStart[mCurrent], end, mFilePos[mCurrent], mChecksum);
+            if (mCodecs[mCurrent] == NetProtocol.CODEC_DEFLATE) {
+                if (mCodec == null) {
+                    mCodec = new BlockCodec();
+                }
+                mBuf.clear();
+                mBuf.limit(BlockCodec.BLOCK_HEADER_LEN);
+                mBlockRawLen = -1;
+            }
+            mState = CONTENT;
+        } else {
+            mBuf.clear();
+            mBuf.limit(4);
+            mState = MANIFEST_SIZE;
+        }
+        return true;
+    }
+
+    // transferFrom() writes as it reads, so it runs on the disk stage
+    private boolean receiveContent(SelectionKey key) {
+        int i = mCurrent;
+        // for the eof probe
+        ByteBuffer buf = mStage.take((int) Math.min(mTuner.blockSize(), mRangeRemaining[i]));
+        key.interestOps(0);
+        mStage.submit(buf, new SpliceJob(mFiles[i], mRangeStart[i], mFilePos[i], Math.min(mRangeRemaining[i], MAX_SPLICE)));
+        return true;
+    }
+
+    private void onSpliced(SpliceJob job, ByteBuffer buf) {
+        mStage.release(buf);
+        int i = mCurrent;
+        long n = job.mReceived;
+        mFilePos[i] += n;
+        mRangeRemaining[i] -= n;
+        mTuner.onTransferred(n);
+        mMetrics.onTransferred(n);
+        mFiles[i].task().proceed(n);
+        mChecksum.advance(mFilePos[i]);
+        mSinceCheckpoint += n;
+        if (mSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+            ByteBuffer slot = mStage.take(0);
+            if (slot != null) {
+                mStage.submit(slot, new CheckpointJob(mFiles[i]));
+                mSinceCheckpoint = 0;
+            }
+        }
+        mKey.interestOps(SelectionKey.OP_READ);
+        if (mRangeRemaining[i] == 0) {
+            receiveTrailer();
+        }
+    }
+
+    // a deflated body arrives as blocks of raw length, stored length and the stored bytes
+    private boolean receiveBlock(SelectionKey key) throws IOException {
+        int i = mCurrent;
+        if (mBlockRawLen == -1) {
+            if (mChannel.read(mBuf) == -1) {
+                Log.w(TAG, "EOF size=" + mFiles[i].task().size() + " range remaining=" + mRangeRemaining[i]);
+                abort();
+                return false;
+            }
+            if (mBuf.hasRemaining()) {
+                return true;
+            }
+
+            mBuf.flip();
+            int rawLen = FrameCodec.getLength(mBuf, 1, Math.min(BlockCodec.MAX_RAW_LEN, mRangeRemaining[i]), "block");
+            int storedLen = FrameCodec.getLength(mBuf, 1, rawLen, "stored block");
+            mBlockRawLen = rawLen;
+            mBlockStoredLen = storedLen;
+            mBuf.clear();
+            mBuf.limit(BlockCodec.BLOCK_HEADER_LEN);
+        }
+
+        if (mIn == null) {
+            if (!takeBuffer(key, mBlockStoredLen)) {
+                return true;
+            }
+            mIn.limit(mBlockStoredLen);
+        }
+        int n = mChannel.read(mIn);
+        if (n == -1) {
+            Log.w(TAG, "EOF size=" + mFiles[i].task().size() + " range remaining=" + mRangeRemaining[i]);
+            abort();
+            return false;
+        }
+        mMetrics.onTransferred(n);
+        if (mIn.hasRemaining()) {
+            return true;
+        }
+
+        // decoded on the disk worker as well
+        writeBehind(mBlockRawLen, mCodec);
+        mBlockRawLen = -1;
+        if (mRangeRemaining[i] == 0) {
+            // completed
+            return receiveTrailer();
+        }
+        return true;
+    }
+
+    // false while the ring is full
+    private boolean takeBuffer(SelectionKey key, int size) {
+        mIn = mStage.take(size);
+        if (mIn == null) {
+            key.interestOps(0);
+            mPaused = true;
+            mMetrics.onDiskWait();
+            return false;
+        }
+        return true;
+    }
+
+    // hands the filled buffer to the disk stage
+    private void writeBehind(int rawLen, BlockCodec decoder) {
+        int i = mCurrent;
+        WriteJob job = new WriteJob(mFiles[i], mChecksum, mRangeStart[i], mFilePos[i], rawLen, decoder);
+        mFilePos[i] += rawLen;
+        mRangeRemaining[i] -= rawLen;
+        mStage.submit(mIn, job);
+        mIn = null;
+
+        mSinceCheckpoint += rawLen;
+        if (mSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+            // skipped while the ring is full
+            ByteBuffer slot = mStage.take(0);
+            if (slot != null) {
+                mStage.submit(slot, new CheckpointJob(mFiles[i]));
+                mSinceCheckpoint = 0;
+            }
+        }
+    }
+
+    private void onWritten(WriteJob job, ByteBuffer buf) {
+        mStage.release(buf);
+        job.mFile.task().proceed(job.mRawLen);
+        // only written bytes may be read back for the checksum
+        job.mRangeChecksum.advance(job.mPos + job.mRawLen);
+        if (mPaused) {
+            mPaused = false;
+            mMetrics.onDiskReady();
+            mKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void onDiskFailed(IOException e) {
+        Log.w(TAG, "cannot receive " + mFiles[mCurrent].file().getName());
+        e.printStackTrace();
+        abort();
+    }
+
+    // what the socket has of the range, moved into the file at its position
+    private class SpliceJob extends DiskStage.Job {
+        private final IncomingFile mFile;
+        private final FileChannel mTarget;
+        private final long mRangeStart;
+        private final long mPos;
+        private final long mCount;
+        private long mReceived = 0;
+
+        SpliceJob(IncomingFile file, long rangeStart, long pos, long count) {
+            mFile = file;
+            mTarget = file.channel();
+            mRangeStart = rangeStart;
+            mPos = pos;
+            mCount = count;
+        }
+
+        @Override
+        protected void run(ByteBuffer buf) throws IOException {
+            long n = mTarget.transferFrom(mChannel, mPos, mCount);
+            if (n == 0) {
+                // eof or a drained socket
+                buf.limit((int) Math.min(buf.capacity(), mCount));
+                if (mChannel.read(buf) == -1) {
+                    throw new EOFException("EOF at " + mPos + " of " + mFile.file().getName());
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    n += mTarget.write(buf, mPos + n);
+                }
+            }
+            mReceived = n;
+            mFile.setValid(mRangeStart, mPos + n);
+        }
+
+        @Override
+        protected void done(ByteBuffer buf) {
+            onSpliced(this, buf);
+        }
+    }
+
+    // one block, decoded if it came deflated
+    private class WriteJob extends DiskStage.Job {
+        private final IncomingFile mFile;
+        private final FileChannel mTarget;
+        private final RangeChecksum mRangeChecksum;
+        private final long mRangeStart;
+        private final long mPos;
+        private final int mRawLen;
+        private final BlockCodec mDecoder;
+
+        WriteJob(IncomingFile file, RangeChecksum checksum, long rangeStart, long pos, int rawLen, BlockCodec decoder) {
+            mFile = file;
+            mTarget = file.channel();
+            mRangeChecksum = checksum;
+            mRangeStart = rangeStart;
+            mPos = pos;
+            mRawLen = rawLen;
+            mDecoder = decoder;
+        }
+
+        @Override
+        protected void run(ByteBuffer buf) throws IOException {
+            buf.flip();
+            ByteBuffer raw = mDecoder == null ? buf : mDecoder.decode(mRawLen, buf);
+            long pos = mPos;
+            while (raw.hasRemaining()) {
+                pos += mTarget.write(raw, pos);
+            }
+            // blocks of a range are written in order
+            mFile.setValid(mRangeStart, pos);
+        }
+
+        @Override
+        protected void done(ByteBuffer buf) {
+            onWritten(this, buf);
+        }
+    }
+
+    // records how far the file is written, so a later attempt can resume from there
+    private class CheckpointJob extends DiskStage.Job {
+        private final IncomingFile mFile;
+
+        CheckpointJob(IncomingFile file) {
+            mFile = file;
+        }
+
+        @Override
+        protected void run(ByteBuffer buf) {
+            mFile.checkpoint();
+        }
+
+        @Override
+        protected void done(ByteBuffer buf) {
+            mStage.release(buf);
+        }
+    }
+
+    private boolean receiveTrailer() {
+        mBuf.clear();
+        mBuf.limit(4);
+        mState = TRAILER_SIZE;
+        return true;
+    }
+
+    // takes the matching head of every offered range
+    private void adoptOffered() {
+        if (mTerminated) {
+            return;
+        }
+        ArrayList<IncomingFile> files = new ArrayList<>();
+        ArrayList<Long> adopted = new ArrayList<>();
+        long[] matched = new long[mOffered.size()];
+        for (int k = 0; k < mOffered.size(); ++k) {
+            int i = mOffered.get(k);
+            RangeChecksum local = mLocalChecksums[i];
+            if (mOfferedChecksums[k] != null) {
+                List<Integer> bad = local.mismatches(mOfferedChecksums[k]);
+                int good = Math.min(bad.isEmpty() ? local.segmentCount() : bad.get(0), offeredSegments(i));
+                good = Math.min(good, local.hashedPrefix());
+                matched[k] = good == 0 ? 0 : Math.min(local.segmentEnd(good - 1) - mRangeStart[i], mRangeRemaining[i]);
+            }
+            IncomingFile file = mFiles[i];
+            if (file.candidate() == null) {
+                long kept = file.resumeOffset(mRangeStart[i], mRangeStart[i] + mRangeRemaining[i]);
+                if (matched[k] < kept) {
+                    Log.i(TAG, "keeping " + matched[k] + " of " + kept + " bytes of " + file.file().getName());
+                    file.rewind(mRangeStart[i], mRangeStart[i] + matched[k]);
+                    file.task().proceed(matched[k] - kept);
+                }
+                continue;
+            }
+            if (matched[k] > 0) {
+                Log.i(TAG, "taking " + matched[k] + " bytes of " + file.file().getName() + " from " + file.candidate());
+            }
+            files.add(file);
+            adopted.add(matched[k]);
+        }
+        if (files.isEmpty()) {
+            answerOffer(matched);
+            return;
+        }
+        long[] counts = new long[files.size()];
+        for (int k = 0; k < counts.length; ++k) {
+            counts[k] = adopted.get(k);
+        }
+        mRegistry.adoptAll(files, counts).whenCompleteAsync((v, e) -> {
+            if (mTerminated) {
+                return;
+            }
+            if (e != null) {
+                e.printStackTrace();
+                abort();
+                return;
+            }
+            answerOffer(matched);
+        }, mLoop);
+    }
+
+    private int offeredSegments(int i) {
+        return RangeChecksum.segmentCount(mRangeStart[i], mRangeStart[i] + mOfferedLen[i]);
+    }
+
+    // how much of every offered range was taken
+    private void answerOffer(long[] matched) {
+        mBuf.clear();
+        for (int k = 0; k < mOffered.size(); ++k) {
+            int i = mOffered.get(k);
+            mFilePos[i] += matched[k];
+            mRangeRemaining[i] -= matched[k];
+            mBuf.putLong(matched[k]);
+        }
+        mBuf.flip();
+        mOffered.clear();
+        mLocalChecksums = null;
+        mOfferedLen = null;
+        mOfferedChecksums = null;
+        mState = OFFER_ANSWER;
+        mKey.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void verify(int[] expected) {
+        if (mTerminated) {
+            return;
+        }
+        IncomingFile file = mFiles[mCurrent];
+        List<Integer> bad = mChecksum.mismatches(expected);
+        if (!bad.isEmpty()) {
+            for (int i : bad) {
+                Log.w(TAG, file.file().getName() + " corrupted in " + mChecksum.segmentStart(i) + "-" + mChecksum.segmentEnd(i));
+            }
+            // a resend picks up from the first bad segment
+            file.rewind(mRangeStart[mCurrent], mChecksum.segmentStart(bad.get(0)));
+            if (file.stripeCount() == 1) {
+                file.task().rewind(mChecksum.segmentStart(bad.get(0)));
+            }
+        }
+        mChecksum = null;
+        mFiles[mCurrent++].leave(this, bad.isEmpty());
+        if (mTerminated) {
+            return;
+        }
+        mKey.interestOps(SelectionKey.OP_READ);
+        nextFile();
+    }
+
     private void terminate(boolean completed) {
+        if (mTerminated) {
+            return;
+        }
+        mTerminated = true;
+        if (mOnTerminated != null) {
+            mOnTerminated.run();
+        }
+        mMetrics.onFinished();
         Log.i(TAG, "terminated=" + completed);
         closeSilently(mChannel);
-        mTask.finish(completed);
-        if (mFileStream != null) {
-            closeSilently(mFileStream);
+        if (mBuf != null) {
+            BufferPool.release(mBuf);
+            mBuf = null;
+        }
+        if (mStage != null) {
+            // blocks being written may still use the codec
+            BlockCodec codec = mCodec;
+            mStage.close(codec == null ? null : codec::release);
+            if (mIn != null) {
+                mStage.release(mIn);
+                mIn = null;
+            }
+        }
+        for (int i = mCurrent; i < mFiles.length; ++i) {
+            mFiles[i].leave(this, completed);
         }
     }
 
     public void abort() {
         terminate(false);
     }
+
+    // a task of this handler that throws takes down this transfer only
+    private Executor guard(Executor loop) {
+        return task -> loop.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "task failed");
+                e.printStackTrace();
+                terminate(false);
+            }
+        });
+    }
+
+    public Executor loop() {
+        return mLoop;
+    }
+
+    public TransferMetrics metrics() {
+        return mMetrics;
+    }
 }
@@ -4,57 +4,159 @@ import static com.filetransfer.kolibri.misc.Util.closeSilently;
 
 import android.util.Log;
 
-import com.filetransfer.kolibri.network.FileTaskWrapper;
-import com.filetransfer.kolibri.network.ILocalFile;
+import com.filetransfer.kolibri.network.BlockCodec;
+import com.filetransfer.kolibri.network.BlockSizeTuner;
+import com.filetransfer.kolibri.network.BufferPool;
+import com.filetransfer.kolibri.network.DiskStage;
+import com.filetransfer.kolibri.network.FrameCodec;
+import com.filetransfer.kolibri.network.ManifestEntry;
 import com.filetransfer.kolibri.network.NetProtocol;
+import com.filetransfer.kolibri.network.OutgoingFile;
+import com.filetransfer.kolibri.network.RangeChecksum;
+import com.filetransfer.kolibri.network.TransferMetrics;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
 
+// sends a session over one connection: manifests of file ranges, each followed by the bodies of the ranges in order
 public class SendHandler implements ITransferHandler {
     private static final String TAG = SendHandler.class.getSimpleName();
-    private final ByteBuffer mBuf = ByteBuffer.allocate(NetProtocol.FILE_BLK_SIZE);
-    private final ILocalFile mFile;
-    private final FileTaskWrapper mTask;
-    private final InetAddress mPairAddr;
+    // states, in session order
+    private static final int NEXT_BATCH = 0;
+    private static final int PREPARING = 1;
+    private static final int MANIFEST = 2;
+    private static final int ANSWER = 3;
+    private static final int OFFER_LENGTHS = 4;
+    private static final int OFFER_HASHING = 5;
+    private static final int OFFER = 6;
+    private static final int OFFER_ANSWER = 7;
+    private static final int CONTENT = 8;
+    private static final int CONTENT_SENT = 9;
+    private static final int CHECKSUMMING = 10;
+    private static final int TRAILER = 11;
+    // file count, max block size
+    private static final int MANIFEST_FIXED_LEN = 4 + 4;
+    private static final int MAP_WINDOW = 8 * 1024 * 1024;
+    // bytes moved by one transferTo() job
+    private static final long MAX_SPLICE = 4 * 1024 * 1024;
+    private final ArrayDeque<OutgoingFile> mPending;
+    // files produced on demand, e.g. by a directory walk
+    private final Iterator<OutgoingFile> mSource;
+    private final int mStripe;
+    private final InetSocketAddress mPairAddr;
+    private final boolean mCompress;
+    // results of background work come back through it
+    private final Executor mLoop;
+    // files of the manifest in flight
+    private final ArrayList<OutgoingFile> mBatch = new ArrayList<>();
+    private long[] mFilePos;
+    private long[] mRangeRemaining;
+    private int[] mCodecs;
+    // skipped, the receiver has no room for them
+    private boolean[] mNoSpace;
+    private int mCurrent = 0;
     private SocketChannel mChannel;
-    private int mState = 0;
+    private ByteBuffer mBuf;
+    private BlockSizeTuner mTuner;
+    private BlockCodec mCodec;
+    // reads blocks ahead off the loop, ready ones wait in order for the socket
+    private DiskStage mStage;
+    private final ArrayDeque<FillJob> mReady = new ArrayDeque<>();
+    private FillJob mOut;
+    private int mInFlight = 0;
+    private boolean mStarved = false;
+    private boolean mFirstBlock = false;
+    // the current range goes out with transferTo()
+    private boolean mSplice = false;
+    // disk stage only
+    private MappedByteBuffer mWindow;
+    private FileChannel mWindowChannel;
+    private long mWindowPos;
+    private RangeChecksum mChecksum;
+    // checksums started for an offer, finished for the trailer
+    private RangeChecksum[] mChecksums;
+    // files the receiver asked about, and how far into their ranges
+    private final ArrayList<Integer> mOffered = new ArrayList<>();
+    private long[] mOfferedLen;
+    private int mHashing = 0;
+    private SelectionKey mKey;
+    private final TransferMetrics mMetrics;
+    private int mState = NEXT_BATCH;
+    private boolean mTerminated = false;
+    // tells the loop to forget this handler
+    private Runnable mOnTerminated;
+    // guarded by mHandoff
+    private final Object mHandoff = new Object();
+    private ArrayList<OutgoingFile> mPrepared;
+    private OutgoingFile mCarry;
+    private boolean mHandoffClosed = false;
 
     public SendHandler(
-            FileTaskWrapper task,
-            ILocalFile file,
-            InetAddress pairAddr) {
+            List<OutgoingFile> files,
+            int stripe,
+            InetSocketAddress pairAddr,
+            boolean compress,
+            Executor loop) {
 //        Log.i(TAG, "created");
-        mTask = task;
-        mFile = file;
+        mPending = new ArrayDeque<>(files);
+        mSource = null;
+        mStripe = stripe;
         mPairAddr = pairAddr;
+        mCompress = compress;
+        mLoop = guard(loop);
+        mMetrics = new TransferMetrics("send", stripe);
+        for (OutgoingFile file : files) {
+            file.join(this);
+        }
     }
 
-    public boolean register(Selector selector) {
+    public SendHandler(
+            Iterator<OutgoingFile> source,
+            InetSocketAddress pairAddr,
+            boolean compress,
+            Executor loop) {
+        mPending = new ArrayDeque<>();
+        mSource = source;
+        mStripe = 0;
+        mPairAddr = pairAddr;
+        mCompress = compress;
+        mLoop = guard(loop);
+        mMetrics = new TransferMetrics("send", 0);
+    }
+
+    public boolean register(Selector selector, Runnable onTerminated) {
 //        Log.i(TAG, "registered");
+        mOnTerminated = onTerminated;
+        if (mTerminated) {
+            // a sibling stripe failed before this one got registered
+            return false;
+        }
+        mBuf = BufferPool.acquire(NetProtocol.MAX_MANIFEST_LEN);
         mBuf.limit(0);
+        mStage = new DiskStage(mLoop, this::onDiskFailed);
 
         try {
             mChannel = SocketChannel.open();
             mChannel.configureBlocking(false);
-            mChannel.connect(new InetSocketAddress(mPairAddr, NetProtocol.FILE_PORT));
-            mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+            mChannel.connect(mPairAddr);
+            mKey = mChannel.register(selector, SelectionKey.OP_CONNECT, this);
         } catch (IOException e) {
             e.printStackTrace();
             abort();
             return false;
         }
-
-        // temporarily make path null as there is no need now for the sender to open files
-        // also it is difficult to handle permissions
-        mTask.start(mFile.name(), null, mFile.size(), true);
         return true;
     }
 
@@ -67,69 +169,745 @@ public class SendHandler implements ITransferHandler {
                     return false;
                 }
 
+                mTuner = new BlockSizeTuner(mChannel.socket().getSendBufferSize(), NetProtocol.MAX_FILE_BLK_SIZE);
+                mMetrics.onConnected();
+                mBuf.clear();
+                FrameCodec.putHandshake(mBuf);
+                mBuf.flip();
                 key.interestOps(SelectionKey.OP_WRITE);
                 return true;
             }
 
+            if (mState == ANSWER || mState == OFFER_LENGTHS || mState == OFFER_ANSWER) {
+                return receiveAnswer(key);
+            }
+            if (mState == CONTENT) {
+                return sendContent(key);
+            }
+
             if (mBuf.hasRemaining()) {
-                mChannel.write(mBuf);
+                mTuner.onTransferred(mChannel.write(mBuf));
                 return true;
             }
 
             mBuf.rewind();
             switch (mState) {
-                case 0: { // file name size, file name, file size
-                    byte[] fileNameBytes = mFile.name().getBytes(StandardCharsets.UTF_8);
-//                    Log.e(TAG, "fileNameSize=" + fileNameBytes.length + " ,fileSize=" + mFileSize);
-                    mBuf.limit(4 + 8 + fileNameBytes.length);
-                    mBuf.putInt(fileNameBytes.length);
-                    mBuf.put(fileNameBytes);
-                    // TODO try https://developer.android.com/training/secure-file-sharing/retrieve-info?hl=zh-cn
-                    mBuf.putLong(mFile.size());
-                    mState = 1;
-                    break;
+                case NEXT_BATCH: { // prepared off the loop
+                    key.interestOps(0);
+                    mState = PREPARING;
+                    prepareBatch();
+                    return !mTerminated;
+                }
+                case MANIFEST: {
+                    key.interestOps(SelectionKey.OP_READ);
+                    mBuf.limit(8 * mBatch.size());
+                    mState = ANSWER;
+                    return true;
                 }
-                case 1: { // file content
-                    mBuf.limit((int) Math.min(mTask.remaining(), mBuf.capacity()));
+                case CONTENT_SENT: {
+                    key.interestOps(0);
+                    mState = CHECKSUMMING;
+                    mChecksum.whenDone(mLoop, this::sendTrailer);
+                    return !mTerminated;
+                }
+                case OFFER: {
+                    key.interestOps(SelectionKey.OP_READ);
+                    mBuf.clear();
+                    mBuf.limit(8 * mOffered.size());
+                    mState = OFFER_ANSWER;
+                    return true;
+                }
+                case TRAILER: { // file completed
+                    mBatch.get(mCurrent++).leave(this, true);
+                    if (!nextFile(key)) {
+                        return false;
+                    }
+                    mBuf.limit(0);
+                    return true;
+                }
+            }
+            mBuf.flip();
+        } catch (IOException e) {
+            e.printStackTrace();
+            abort();
+            return false;
+        }
 
-                    FileChannel channel = mFile.stream().getChannel();
-                    while (mBuf.hasRemaining()) {
-                        if (channel.read(mBuf) == -1) {
-                            abort();
-                            return false;
-                        }
+        return true;
+    }
+
+    // as many pending files as fit into one manifest, the rest comes from the source
+    private void prepareBatch() {
+        mBatch.clear();
+        mCurrent = 0;
+        int manifestLen = MANIFEST_FIXED_LEN;
+        ArrayList<OutgoingFile> batch = new ArrayList<>();
+        boolean full = false;
+        while (!mPending.isEmpty() && batch.size() < NetProtocol.MAX_MANIFEST_FILES) {
+            int entryLen = ManifestEntry.encodedLength(mPending.peek().name());
+            if (entryLen == -1 || 4 + manifestLen + entryLen > NetProtocol.MAX_MANIFEST_LEN) {
+                if (entryLen == -1 || batch.isEmpty()) {
+                    // cannot be described in any manifest
+                    mPending.poll().leave(this, false);
+                    continue;
+                }
+                full = true;
+                break;
+            }
+            manifestLen += entryLen;
+            batch.add(mPending.poll());
+        }
+        if (mSource == null || full || batch.size() == NetProtocol.MAX_MANIFEST_FILES) {
+            if (batch.isEmpty()) {
+                // closing the connection ends the session
+                terminate(true);
+                return;
+            }
+            startBatch(batch, null);
+            return;
+        }
+        int len = manifestLen;
+        DiskStage.background(() -> takeFromSource(batch, len));
+    }
+
+    // on a disk worker
+    private void takeFromSource(ArrayList<OutgoingFile> batch, int manifestLen) {
+        OutgoingFile carry = null;
+        try {
+            while (batch.size() < NetProtocol.MAX_MANIFEST_FILES && mSource.hasNext()) {
+                OutgoingFile file = mSource.next();
+                int entryLen = ManifestEntry.encodedLength(file.name());
+                if (entryLen == -1 || 4 + manifestLen + entryLen > NetProtocol.MAX_MANIFEST_LEN) {
+                    if (entryLen == -1 || batch.isEmpty()) {
+                        // cannot be described in any manifest
+                        file.abort();
+                        continue;
                     }
+                    // heads the next batch
+                    file.join(this);
+                    carry = file;
+                    break;
+                }
+                file.join(this);
+                manifestLen += entryLen;
+                batch.add(file);
+            }
+        } catch (RuntimeException e) {
+            // e.g. the provider went away
+            Log.w(TAG, "failed to walk the source");
+            e.printStackTrace();
+        }
+        startBatch(batch, carry);
+    }
+
+    private void startBatch(ArrayList<OutgoingFile> batch, OutgoingFile carry) {
+        if (batch.isEmpty()) {
+            handOver(batch, carry);
+            return;
+        }
+        OutgoingFile.startAll(batch).whenComplete((v, e) -> handOver(batch, carry));
+    }
+
+    // any thread
+    private void handOver(ArrayList<OutgoingFile> batch, OutgoingFile carry) {
+        synchronized (mHandoff) {
+            if (!mHandoffClosed) {
+                mPrepared = batch;
+                mCarry = carry;
+                mLoop.execute(this::onBatchReady);
+                return;
+            }
+        }
+        for (OutgoingFile file : batch) {
+            file.leave(this, false);
+        }
+        if (carry != null) {
+            carry.leave(this, false);
+        }
+    }
 
-                    if (mTask.proceed(mBuf.limit())) {
-                        mState = 2;
+    private void onBatchReady() {
+        ArrayList<OutgoingFile> batch;
+        OutgoingFile carry;
+        synchronized (mHandoff) {
+            batch = mPrepared;
+            carry = mCarry;
+            mPrepared = null;
+            mCarry = null;
+        }
+        if (batch == null) {
+            // terminated meanwhile
+            return;
+        }
+        if (carry != null) {
+            mPending.add(carry);
+        }
+        for (OutgoingFile file : batch) {
+            if (file.isOpen()) {
+                mBatch.add(file);
+            } else {
+                file.leave(this, false);
+            }
+        }
+        if (mTerminated) {
+            return;
+        }
+        if (mBatch.isEmpty()) {
+            prepareBatch();
+            return;
+        }
+
+        mFilePos = new long[mBatch.size()];
+        mRangeRemaining = new long[mBatch.size()];
+        mCodecs = new int[mBatch.size()];
+        mNoSpace = new boolean[mBatch.size()];
+        for (int i = 0; i < mBatch.size(); ++i) {
+            OutgoingFile file = mBatch.get(i);
+            mFilePos[i] = file.basePosition() + file.rangeOffset(mStripe);
+            mRangeRemaining[i] = file.rangeLength(mStripe);
+            mCodecs[i] = mCompress && mRangeRemaining[i] > 0 && BlockCodec.isCompressible(file.name())
+                    ? NetProtocol.CODEC_DEFLATE : NetProtocol.CODEC_RAW;
+        }
+
+        // manifest: file count, max block size, entries
+        mBuf.clear();
+        mBuf.putInt(0);
+        mBuf.putInt(mBatch.size());
+        mBuf.putInt(mTuner.maxBlockSize());
+        for (int i = 0; i < mBatch.size(); ++i) {
+            manifestEntry(i).write(mBuf);
+        }
+        mBuf.putInt(0, mBuf.position() - 4);
+//        Log.e(TAG, "manifest files=" + mBatch.size());
+        mBuf.flip();
+        mState = MANIFEST;
+        mKey.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private ManifestEntry manifestEntry(int i) {
+        OutgoingFile file = mBatch.get(i);
+        return new ManifestEntry(file.id(), file.transferId(), file.fingerprint(), file.size(),
+                file.rangeOffset(mStripe), file.rangeLength(mStripe), file.stripeCount(), mCodecs[i], file.name());
+    }
+
+    // file content
+    private boolean sendContent(SelectionKey key) throws IOException {
+        if (mSplice) {
+            return sendSpliced(key);
+        }
+        readAhead();
+        if (mOut == null) {
+            mOut = mReady.poll();
+            if (mOut == null) {
+                // the disk is behind, onFilled() picks up again
+                key.interestOps(0);
+                mStarved = true;
+                mMetrics.onDiskWait();
+                return true;
+            }
+        }
+        int n = mChannel.write(mOut.mData);
+        mTuner.onTransferred(n);
+        mMetrics.onTransferred(n);
+        if (mOut.mData.hasRemaining()) {
+            return true;
+        }
+
+        mBatch.get(mCurrent).task().proceed(mOut.mRawLen);
+        mStage.release(mOut.mSlot);
+        mOut = null;
+        if (--mInFlight == 0 && mRangeRemaining[mCurrent] == 0) {
+            mState = CONTENT_SENT;
+        }
+        return true;
+    }
+
+    // transferTo() blocks while the pages are read from storage, so it runs on the disk stage
+    private boolean sendSpliced(SelectionKey key) {
+        int i = mCurrent;
+        key.interestOps(0);
+        mStage.submit(mStage.take(0), new SpliceJob(mBatch.get(i), mFilePos[i], Math.min(mRangeRemaining[i], MAX_SPLICE)));
+        return true;
+    }
+
+    private void onSpliced(long n) {
+        int i = mCurrent;
+        OutgoingFile file = mBatch.get(i);
+        mFilePos[i] += n;
+        mRangeRemaining[i] -= n;
+        mTuner.onTransferred(n);
+        mMetrics.onTransferred(n);
+        file.task().proceed(n);
+        mChecksum.advance(mFilePos[i] - file.basePosition());
+        if (mRangeRemaining[i] == 0) {
+            mState = CONTENT_SENT;
+        }
+        mKey.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    // hands every free buffer of the ring to the disk stage
+    private void readAhead() {
+        int i = mCurrent;
+        OutgoingFile file = mBatch.get(i);
+        boolean deflate = mCodecs[i] == NetProtocol.CODEC_DEFLATE;
+        // mapped blocks only take a slot
+        boolean mapped = !deflate && file.isMappable();
+        while (mRangeRemaining[i] > 0) {
+            int rawLen = (int) Math.min(mRangeRemaining[i], deflate ? BlockCodec.MAX_RAW_LEN : mTuner.blockSize());
+            ByteBuffer buf = mStage.take(deflate ? BlockCodec.MAX_ENCODED_LEN : mapped ? 0 : rawLen);
+            if (buf == null) {
+                return;
+            }
+            FillJob job = new FillJob(file, mFilePos[i], mFilePos[i] + mRangeRemaining[i], rawLen,
+                    deflate ? mCodec : null, mapped, mFirstBlock);
+            mFirstBlock = false;
+            mFilePos[i] += rawLen;
+            mRangeRemaining[i] -= rawLen;
+            ++mInFlight;
+            mStage.submit(buf, job);
+        }
+    }
+
+    private void onFilled(FillJob job) {
+        if (!job.mSequential) {
+            mChecksum.advance(job.mPos + job.mRawLen - mBatch.get(mCurrent).basePosition());
+        }
+        mReady.add(job);
+        if (mStarved) {
+            mStarved = false;
+            mMetrics.onDiskReady();
+            mKey.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    // the block at pos as a slice of the mapped window
+    private ByteBuffer map(FileChannel channel, long pos, int len, long end) throws IOException {
+        if (mWindowChannel != channel || pos < mWindowPos || pos + len > mWindowPos + mWindow.capacity()) {
+            mWindow = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, end - pos));
+            mWindow.load();
+            mWindowChannel = channel;
+            mWindowPos = pos;
+        }
+        ByteBuffer slice = mWindow.duplicate();
+        slice.position((int) (pos - mWindowPos));
+        slice.limit(slice.position() + len);
+        return slice;
+    }
+
+    private void onDiskFailed(IOException e) {
+        Log.w(TAG, "cannot send " + mBatch.get(mCurrent).name());
+        e.printStackTrace();
+        abort();
+    }
+
+    // as much of the range as the socket takes, straight from the file
+    private class SpliceJob extends DiskStage.Job {
+        private final FileChannel mSource;
+        private final long mPos;
+        private final long mCount;
+        private long mSent = 0;
+
+        SpliceJob(OutgoingFile file, long pos, long count) {
+            mSource = file.channel();
+            mPos = pos;
+            mCount = count;
+        }
+
+        @Override
+        protected void run(ByteBuffer buf) throws IOException {
+            while (mSent < mCount) {
+                long n = mSource.transferTo(mPos + mSent, mCount - mSent, mChannel);
+                if (n == 0) {
+                    if (mSent == 0 && mPos >= mSource.size()) {
+                        throw new IOException("source truncated at " + mPos);
                     }
+                    // the socket is full
                     break;
                 }
-                case 2: { // completed
-                    terminate(true);
-                    return false;
+                mSent += n;
+            }
+        }
+
+        @Override
+        protected void done(ByteBuffer buf) {
+            mStage.release(buf);
+            onSpliced(mSent);
+        }
+    }
+
+    // one block of the current range, deflated if the range is
+    private class FillJob extends DiskStage.Job {
+        private final FileChannel mSource;
+        // sources that cannot seek are read and hashed in order
+        private final ReadableByteChannel mStream;
+        private final boolean mSequential;
+        private final RangeChecksum mInlineChecksum;
+        private final long mPos;
+        // end of the range, windows are not mapped past it
+        private final long mEnd;
+        private final int mRawLen;
+        private final BlockCodec mEncoder;
+        private final boolean mMapped;
+        private final boolean mFirst;
+        // mData is a mapped slice if mMapped
+        private ByteBuffer mSlot;
+        private ByteBuffer mData;
+
+        FillJob(OutgoingFile file, long pos, long end, int rawLen, BlockCodec encoder, boolean mapped, boolean first) {
+            mSource = file.channel();
+            mStream = file.sequentialChannel();
+            mSequential = !file.isSeekable();
+            mInlineChecksum = mSequential ? mChecksum : null;
+            mPos = pos;
+            mEnd = end;
+            mRawLen = rawLen;
+            mEncoder = encoder;
+            mMapped = mapped;
+            mFirst = first;
+        }
+
+        @Override
+        protected void run(ByteBuffer buf) throws IOException {
+            if (mMapped) {
+                mData = map(mSource, mPos, mRawLen, mEnd);
+                return;
+            }
+            if (mEncoder == null) {
+                buf.limit(mRawLen);
+                readFully(buf);
+                buf.flip();
+                if (mInlineChecksum != null) {
+                    mInlineChecksum.update(buf.duplicate());
                 }
+                return;
             }
-            mBuf.flip();
-        } catch (IOException e) {
-            e.printStackTrace();
+
+            if (mFirst) {
+                mEncoder.startFile();
+            }
+            readFully(ByteBuffer.wrap(mEncoder.rawBuffer(), 0, mRawLen));
+            if (mInlineChecksum != null) {
+                mInlineChecksum.update(mEncoder.rawBuffer(), 0, mRawLen);
+            }
+            mEncoder.encode(mRawLen, buf);
+            buf.flip();
+        }
+
+        private void readFully(ByteBuffer dst) throws IOException {
+            int start = dst.position();
+            while (dst.hasRemaining()) {
+                int n = mSequential
+                        ? mStream.read(dst)
+                        : mSource.read(dst, mPos + dst.position() - start);
+                if (n == -1) {
+                    throw new IOException("source truncated at " + (mPos + dst.position() - start));
+                }
+            }
+        }
+
+        @Override
+        protected void done(ByteBuffer buf) {
+            mSlot = buf;
+            if (!mMapped) {
+                mData = buf;
+            }
+            onFilled(this);
+        }
+    }
+
+    private boolean receiveAnswer(SelectionKey key) throws IOException {
+        if (mChannel.read(mBuf) == -1) {
+            Log.w(TAG, "EOF while waiting for the answer");
             abort();
             return false;
         }
+        if (mBuf.hasRemaining()) {
+            return true;
+        }
+
+        mBuf.flip();
+        if (mState == OFFER_ANSWER) {
+            for (int i : mOffered) {
+                long matched = mBuf.getLong();
+                if (matched > 0) {
+                    Log.i(TAG, "receiver has " + matched + " bytes of " + mBatch.get(i).name());
+                }
+                skipHead(i, matched);
+            }
+            mOffered.clear();
+        } else if (mState == OFFER_LENGTHS) {
+            for (int i : mOffered) {
+                long len = mBuf.getLong();
+                if (len < 0 || len > mRangeRemaining[i]) {
+                    throw new IOException("bad offer length " + len);
+                }
+                mOfferedLen[i] = len;
+            }
+            return offerChecksums(key);
+        } else {
+            mChecksums = new RangeChecksum[mBatch.size()];
+            mOfferedLen = new long[mBatch.size()];
+            for (int i = 0; i < mBatch.size(); ++i) {
+                long resumeOffset = mBuf.getLong();
+                if (resumeOffset == NetProtocol.ANSWER_OFFER) {
+                    mOffered.add(i);
+                    continue;
+                }
+                if (resumeOffset == NetProtocol.ANSWER_NO_SPACE) {
+                    Log.w(TAG, "receiver has no space for " + mBatch.get(i).name());
+                    mNoSpace[i] = true;
+                    mRangeRemaining[i] = 0;
+                    continue;
+                }
+                if (resumeOffset > 0) {
+                    Log.i(TAG, "resuming " + mBatch.get(i).name() + " from " + resumeOffset);
+                }
+                skipHead(i, resumeOffset);
+            }
+            if (!mOffered.isEmpty()) {
+                mBuf.clear();
+                mBuf.limit(8 * mOffered.size());
+                mState = OFFER_LENGTHS;
+                return true;
+            }
+        }
+
+        key.interestOps(SelectionKey.OP_WRITE);
+        mBuf.limit(0);
+        return nextFile(key);
+    }
+
+    // the receiver already has count bytes at the head of the range
+    private void skipHead(int i, long count) throws IOException {
+        OutgoingFile file = mBatch.get(i);
+        if (count < 0 || count > mRangeRemaining[i]) {
+            throw new IOException("bad resume offset " + count);
+        }
+        if (count > 0 && !file.isSeekable()) {
+            throw new IOException("cannot resume a source that is not seekable");
+        }
+        mFilePos[i] += count;
+        mRangeRemaining[i] -= count;
+        file.task().proceed(count);
+    }
 
+    // only the offered heads are hashed now, the rest as the body goes out
+    private boolean offerChecksums(SelectionKey key) {
+        key.interestOps(0);
+        mState = OFFER_HASHING;
+        ArrayList<Integer> pending = new ArrayList<>();
+        for (int i : mOffered) {
+            OutgoingFile file = mBatch.get(i);
+            if (!file.isSeekable()) {
+                // offered without checksums
+                continue;
+            }
+            long start = file.rangeOffset(mStripe);
+            mChecksums[i] = new RangeChecksum(file.channel(), file.basePosition(), start, start + file.rangeLength(mStripe));
+            mChecksums[i].advance(start + mOfferedLen[i]);
+            pending.add(i);
+        }
+        if (pending.isEmpty()) {
+            sendOffer();
+            return !mTerminated;
+        }
+        mHashing = pending.size();
+        for (int i : pending) {
+            long start = mBatch.get(i).rangeOffset(mStripe);
+            mChecksums[i].whenHashed(RangeChecksum.segmentCount(start, start + mOfferedLen[i]), mLoop, () -> {
+                if (--mHashing == 0) {
+                    sendOffer();
+                }
+            });
+        }
+        return !mTerminated;
+    }
+
+    // for every range asked about: valid, crc32 of the offered segments
+    private void sendOffer() {
+        if (mTerminated) {
+            return;
+        }
+        long len = 0;
+        for (int i : mOffered) {
+            long start = mBatch.get(i).rangeOffset(mStripe);
+            len += 4 + 4L * RangeChecksum.segmentCount(start, start + mOfferedLen[i]);
+        }
+        if (len > NetProtocol.MAX_FILE_BLK_SIZE) {
+            Log.w(TAG, "offer too large");
+            abort();
+            return;
+        }
+        if (mBuf.capacity() < len) {
+            BufferPool.release(mBuf);
+            mBuf = BufferPool.acquire((int) len);
+        }
+        mBuf.clear();
+        for (int i : mOffered) {
+            long start = mBatch.get(i).rangeOffset(mStripe);
+            int count = RangeChecksum.segmentCount(start, start + mOfferedLen[i]);
+            RangeChecksum checksum = mChecksums[i];
+            if (checksum != null && !checksum.isValid()) {
+                mChecksums[i] = checksum = null;
+            }
+            mBuf.putInt(checksum == null ? 0 : 1);
+            for (int k = 0; k < count; ++k) {
+                mBuf.putInt(checksum == null ? 0 : checksum.value(k));
+            }
+        }
+        mBuf.flip();
+        mState = OFFER;
+        mKey.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    // moves to the first range that still needs to be sent, or to the next manifest
+    private boolean nextFile(SelectionKey key) {
+        while (mCurrent < mBatch.size() && mRangeRemaining[mCurrent] == 0) {
+            mBatch.get(mCurrent).leave(this, !mNoSpace[mCurrent]);
+            ++mCurrent;
+        }
+        if (mTerminated) {
+            return false;
+        }
+        if (mCurrent < mBatch.size()) {
+            OutgoingFile file = mBatch.get(mCurrent);
+            mMetrics.onFile(file.name());
+            long start = file.rangeOffset(mStripe);
+            long end = start + file.rangeLength(mStripe);
+            if (mChecksums[mCurrent] != null) {
+                // the head was hashed for the offer
+                mChecksum = mChecksums[mCurrent];
+            } else if (file.isSeekable()) {
+                // the part the receiver already has is hashed right away
+                mChecksum = new RangeChecksum(file.channel(), file.basePosition(), start, end);
+                mChecksum.advance(mFilePos[mCurrent] - file.basePosition());
+            } else {
+                // never resumed, see receiveAnswer()
+                mChecksum = new RangeChecksum(start, end);
+            }
+            if (mCodecs[mCurrent] == NetProtocol.CODEC_DEFLATE && mCodec == null) {
+                mCodec = new BlockCodec();
+            }
+            mSplice = mCodecs[mCurrent] == NetProtocol.CODEC_RAW && file.isSeekable() && !file.isMappable();
+            // the first block resets the codec
+            mFirstBlock = true;
+            mState = CONTENT;
+        } else {
+            mState = NEXT_BATCH;
+        }
         return true;
     }
 
+    // trailer: segment count, crc32 of every segment of the range
+    private void sendTrailer() {
+        if (mTerminated) {
+            return;
+        }
+        if (!mChecksum.isValid()) {
+            Log.w(TAG, "cannot read back " + mBatch.get(mCurrent).name());
+            abort();
+            return;
+        }
+        int count = mChecksum.segmentCount();
+        if (4 + 4 * (long) count > NetProtocol.MAX_FILE_BLK_SIZE) {
+            Log.w(TAG, "range too large to verify");
+            abort();
+            return;
+        }
+        if (mBuf.capacity() < 4 + 4 * count) {
+            BufferPool.release(mBuf);
+            mBuf = BufferPool.acquire(4 + 4 * count);
+        }
+        mBuf.clear();
+        mBuf.putInt(count);
+        for (int i = 0; i < count; ++i) {
+            mBuf.putInt(mChecksum.value(i));
+        }
+        mBuf.flip();
+        mChecksum = null;
+        mState = TRAILER;
+        mKey.interestOps(SelectionKey.OP_WRITE);
+    }
+
     public void abort() {
         terminate(false);
     }
 
+    // a task of this handler that throws takes down this transfer only
+    private Executor guard(Executor loop) {
+        return task -> loop.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "task failed");
+                e.printStackTrace();
+                terminate(false);
+            }
+        });
+    }
+
+    public Executor loop() {
+        return mLoop;
+    }
+
+    public TransferMetrics metrics() {
+        return mMetrics;
+    }
+
     private void terminate(boolean completed) {
-        Log.i(TAG, "terminated=" + completed);
+        if (mTerminated) {
+            return;
+        }
+        mTerminated = true;
+        if (mOnTerminated != null) {
+            mOnTerminated.run();
+        }
+        mMetrics.onFinished();
+        Log.i(TAG, "terminated=" + completed + " stripe=" + mStripe);
         if (mChannel != null) {
             closeSilently(mChannel);
         }
-        mFile.close();
-        mTask.finish(completed);
+        if (mBuf != null) {
+            BufferPool.release(mBuf);
+            mBuf = null;
+        }
+        if (mStage != null) {
+            // blocks being read may still use the codec
+            BlockCodec codec = mCodec;
+            mStage.close(codec == null ? null : codec::release);
+            if (mOut != null) {
+                mStage.release(mOut.mSlot);
+                mOut = null;
+            }
+            for (FillJob job : mReady) {
+                mStage.release(job.mSlot);
+            }
+            mReady.clear();
+        }
+        for (int i = mCurrent; i < mBatch.size(); ++i) {
+            mBatch.get(i).leave(this, completed);
+        }
+        for (OutgoingFile file : mPending) {
+            file.leave(this, completed);
+        }
+        mBatch.clear();
+        mPending.clear();
+        ArrayList<OutgoingFile> prepared;
+        OutgoingFile carry;
+        synchronized (mHandoff) {
+            mHandoffClosed = true;
+            prepared = mPrepared;
+            carry = mCarry;
+            mPrepared = null;
+            mCarry = null;
+        }
+        if (prepared != null) {
+            for (OutgoingFile file : prepared) {
+                file.leave(this, false);
+            }
+        }
+        if (carry != null) {
+            carry.leave(this, false);
+        }
     }
-}
\ No newline at end of file
+}
@@ -39,18 +39,20 @@ import android.widget.Toast;
 
 import com.filetransfer.kolibri.R;
 import com.filetransfer.kolibri.databinding.FragmentMainBinding;
+import com.filetransfer.kolibri.db.DbExecutor;
 import com.filetransfer.kolibri.db.MainDatabase;
-import com.filetransfer.kolibri.db.entity.ChatEntry;
+import com.filetransfer.kolibri.db.Timeline;
+import com.filetransfer.kolibri.db.entity.BaseEntry;
 import com.filetransfer.kolibri.db.entity.FileEntry;
 import com.filetransfer.kolibri.misc.Util;
 import com.filetransfer.kolibri.network.NetworkService;
+import com.filetransfer.kolibri.network.TaskProgress;
 import com.filetransfer.kolibri.ui.pair.PairDialog;
 import com.filetransfer.kolibri.ui.sendapp.SendAppFragment;
 import com.filetransfer.kolibri.ui.setting.SettingsFragment;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
@@ -58,10 +60,7 @@ import java.util.stream.Collectors;
 public class MainFragment extends Fragment {
 
     private static final String TAG = MainFragment.class.getSimpleName();
-    private static final int FILE_ENTRY_UPDATE_DELAY = 1000;
 
-    private final ArrayList<Long> mRunningFileTaskIds = new ArrayList<>();
-    private final Handler mMsgListUpdateHandler = new Handler(Looper.getMainLooper());
     private Activity mActivity;
     private FragmentMainBinding mBinding;
     private Model mModel;
@@ -69,47 +68,35 @@ public class MainFragment extends Fragment {
     private NetworkService mNetService;
     private MainMsgListAdapter mAdapter;
     private MainDatabase mDatabase;
+    private Timeline mTimeline;
     private long mLastFileId = -1, mLastChatId = -1;
-
-    private final Runnable mMsgListUpdateTask = new Runnable() {
-        @Override
-        public void run() {
-            FileEntry[] newRunningTasks = mDatabase.fileDao().listByIds(mRunningFileTaskIds);
-            if (newRunningTasks.length > 0) {
-                mAdapter.updateFileEntries(newRunningTasks);
-            }
-
-            Iterator<Long> oldIter = mRunningFileTaskIds.iterator();
-            int pNew = 0;
-            while (oldIter.hasNext()) {
-                while (pNew < newRunningTasks.length && newRunningTasks[pNew].status != FileEntry.STATUS_RUNNING) {
-                    ++pNew;
-                }
-                long newId = pNew < newRunningTasks.length ? newRunningTasks[pNew].id : -1;
-                long oldId = oldIter.next();
-                if (oldId != newId) {
-                    oldIter.remove();
-                    continue;
-                }
-                ++pNew;
-            }
-
-            if (mRunningFileTaskIds.size() > 0) {
-                mMsgListUpdateHandler.postDelayed(this, FILE_ENTRY_UPDATE_DELAY);
-            }
-        }
-    };
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // a load is on its way, another one was asked for meanwhile
+    private boolean mLoading = false;
+    private boolean mReloadPending = false;
+    // the latest window of the history is loaded, older windows follow as the list is scrolled up
+    private boolean mLatestLoaded = false;
+    private boolean mHasOlder = false;
+    private boolean mLoadingOlder = false;
 
     private final ActivityResultLauncher<String[]> mDocPicker = registerForActivityResult(
-            new ActivityResultContracts.OpenDocument() {
+            new ActivityResultContracts.OpenMultipleDocuments() {
                 @NonNull
                 @Override
                 public Intent createIntent(@NonNull Context context, @NonNull String[] input) {
                     return super.createIntent(context, input).addCategory(Intent.CATEGORY_OPENABLE);
                 }
-            }, (uri) -> {
+            }, (uris) -> {
+                if (mNetService != null && uris != null && !uris.isEmpty()) {
+                    // picked files share one transfer session
+                    mNetService.sendFiles(uris.stream().map(Uri::toString).collect(Collectors.toList()));
+                }
+            });
+
+    private final ActivityResultLauncher<Uri> mTreePicker = registerForActivityResult(
+            new ActivityResultContracts.OpenDocumentTree(), (uri) -> {
                 if (mNetService != null && uri != null) {
-                    mNetService.sendFile(uri.toString());
+                    mNetService.sendTree(uri.toString());
                 }
             });
 
@@ -124,8 +111,10 @@ public class MainFragment extends Fragment {
             mNetService = ((NetworkService.LocalBinder) service).getService();
             mNetService.registerActivityCallback(new Messenger(mServiceMsgHandler));
 
-            // update message list
+            // update message list, running tasks report their progress from memory
             addNewEntries();
+            mNetService.getTransferProgress().removeObservers(MainFragment.this);
+            mNetService.getTransferProgress().observe(MainFragment.this, mAdapter::updateProgress);
         }
 
         @Override
@@ -174,6 +163,7 @@ public class MainFragment extends Fragment {
         mPairModel = vp.get(PairDialog.Model.class);
         mActivity = requireActivity();
         mDatabase = MainDatabase.getInstance(mActivity.getApplicationContext());
+        mTimeline = new Timeline(mDatabase);
 
         mAdapter = new MainMsgListAdapter(new MainMsgListAdapter.Callback() {
             @Override
@@ -246,13 +236,23 @@ public class MainFragment extends Fragment {
             @Override
             public void onItemRangeInserted(int positionStart, int itemCount) {
                 super.onItemRangeInserted(positionStart, itemCount);
+                // follow new entries, not older ones loaded above
                 int cnt = mAdapter.getItemCount();
-                if (cnt > 0) {
+                if (cnt > 0 && positionStart + itemCount == cnt) {
                     mBinding.rvMainMsg.smoothScrollToPosition(cnt - 1);
                 }
             }
         });
 
+        mBinding.rvMainMsg.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView rv, int dx, int dy) {
+                if (lm.findFirstVisibleItemPosition() < Timeline.PAGE_SIZE / 4) {
+                    addOlderEntries();
+                }
+            }
+        });
+
         ((SimpleItemAnimator) Objects.requireNonNull(mBinding.rvMainMsg.getItemAnimator())).setSupportsChangeAnimations(false);
         mBinding.rvMainMsg.setAdapter(mAdapter);
 
@@ -293,6 +293,8 @@ public class MainFragment extends Fragment {
 
         mBinding.btnSendFile.setOnClickListener((v) -> mDocPicker.launch(new String[]{ "*/*" }));
 
+        mBinding.btnSendFolder.setOnClickListener((v) -> mTreePicker.launch(null));
+
         mBinding.btnSendApp.setOnClickListener((v) -> getParentFragmentManager()
                 .beginTransaction()
                 .replace(R.id.container, new SendAppFragment())
@@ -356,9 +358,7 @@ public class MainFragment extends Fragment {
     public void onStop() {
         super.onStop();
 
-        // stop message list update
         mActivity.unregisterReceiver(mReceiver);
-        mMsgListUpdateHandler.removeCallbacks(mMsgListUpdateTask);
 
         // unregister activity callback at NetworkService
         if (mNetService != null) {
@@ -406,27 +406,77 @@ public class MainFragment extends Fragment {
         mBinding.cmdGroupConnected.setVisibility(visibility[2]);
     }
 
+    // loads the entries after the last ones loaded, off the main thread. loads never overlap, so none is merged twice.
+    // the first load takes the latest window of the history only
     private void addNewEntries() {
-        FileEntry[] fileEntries = mDatabase.fileDao().listIdGreaterThan(mLastFileId);
-        ChatEntry[] chatEntries = mDatabase.chatDao().listIdGreaterThan(mLastChatId);
-        if (fileEntries.length > 0) {
-            mLastFileId = fileEntries[fileEntries.length - 1].id;
+        if (mLoading) {
+            mReloadPending = true;
+            return;
         }
-        if (chatEntries.length > 0) {
-            mLastChatId = chatEntries[chatEntries.length - 1].id;
+        mLoading = true;
+        if (!mLatestLoaded) {
+            DbExecutor.query(() -> mTimeline.latest(Timeline.PAGE_SIZE))
+                    .whenCompleteAsync((page, e) -> {
+                        if (page != null) {
+                            mLatestLoaded = true;
+                            mHasOlder = page.hasMore;
+                            mLastFileId = page.lastFileId;
+                            mLastChatId = page.lastChatId;
+                            mAdapter.prependEntries(page.entries);
+                            applyProgress();
+                        }
+                        onNewEntriesLoaded(e);
+                    }, mMainHandler::post);
+            return;
         }
+        long lastFileId = mLastFileId, lastChatId = mLastChatId;
+        DbExecutor.query(() -> mTimeline.added(lastFileId, lastChatId))
+                .whenCompleteAsync((page, e) -> {
+                    if (page != null) {
+                        mLastFileId = page.lastFileId;
+                        mLastChatId = page.lastChatId;
+                        mAdapter.addEntries(page.entries, !mHasOlder);
+                        applyProgress();
+                    }
+                    onNewEntriesLoaded(e);
+                }, mMainHandler::post);
+    }
 
-        mAdapter.mergeEntriesIntoDataSet(fileEntries, chatEntries);
+    private void onNewEntriesLoaded(Throwable e) {
+        mLoading = false;
+        if (e != null) {
+            Log.e(TAG, "failed to load new entries", e);
+        }
+        if (mReloadPending) {
+            mReloadPending = false;
+            addNewEntries();
+        }
+    }
 
-        for (FileEntry e : fileEntries) {
-            if (e.status == FileEntry.STATUS_RUNNING) {
-                mRunningFileTaskIds.add(e.id);
-            }
+    // the window before the first entry loaded
+    private void addOlderEntries() {
+        BaseEntry first = mAdapter.first();
+        if (!mHasOlder || mLoadingOlder || first == null) {
+            return;
         }
+        mLoadingOlder = true;
+        DbExecutor.query(() -> mTimeline.before(first, Timeline.PAGE_SIZE))
+                .whenCompleteAsync((page, e) -> {
+                    mLoadingOlder = false;
+                    if (page == null) {
+                        Log.e(TAG, "failed to load older entries", e);
+                        return;
+                    }
+                    mHasOlder = page.hasMore;
+                    mAdapter.prependEntries(page.entries);
+                }, mMainHandler::post);
+    }
 
-        if (mRunningFileTaskIds.size() > 0) {
-            mMsgListUpdateHandler.removeCallbacks(mMsgListUpdateTask);
-            mMsgListUpdateHandler.postDelayed(mMsgListUpdateTask, FILE_ENTRY_UPDATE_DELAY);
+    // the database may lag behind the transfer, entries that just got loaded take the progress known in memory
+    private void applyProgress() {
+        List<TaskProgress> progress = mNetService == null ? null : mNetService.getTransferProgress().getValue();
+        if (progress != null) {
+            mAdapter.updateProgress(progress);
         }
     }
 
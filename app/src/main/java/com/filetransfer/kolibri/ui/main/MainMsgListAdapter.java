@@ -7,16 +7,24 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.filetransfer.kolibri.R;
+import com.filetransfer.kolibri.db.Timeline;
 import com.filetransfer.kolibri.db.entity.BaseEntry;
 import com.filetransfer.kolibri.db.entity.ChatEntry;
 import com.filetransfer.kolibri.db.entity.FileEntry;
 import com.filetransfer.kolibri.misc.Util;
+import com.filetransfer.kolibri.network.TaskProgress;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
 
 public class MainMsgListAdapter extends RecyclerView.Adapter<MainMsgListAdapter.BaseVH<? extends BaseEntry>> {
 
@@ -24,44 +32,105 @@ public class MainMsgListAdapter extends RecyclerView.Adapter<MainMsgListAdapter.
         void onFileEntryClicked(FileEntry entry);
     }
 
-    private final ArrayList<BaseEntry> mDataSet = new ArrayList<>();
+    private static final DiffUtil.ItemCallback<BaseEntry> DIFF = new DiffUtil.ItemCallback<BaseEntry>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull BaseEntry a, @NonNull BaseEntry b) {
+            return a.getClass() == b.getClass() && a.id == b.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull BaseEntry a, @NonNull BaseEntry b) {
+            if (a instanceof FileEntry) {
+                FileEntry x = (FileEntry) a, y = (FileEntry) b;
+                return x.status == y.status && x.transferred == y.transferred && x.size == y.size && Objects.equals(x.name, y.name);
+            }
+            return Objects.equals(((ChatEntry) a).content, ((ChatEntry) b).content);
+        }
+    };
+
+    // the loaded window in history order. every change is handed to the differ as a new list, entries in a list
+    // handed over are never changed, updates replace them
+    private final ArrayList<BaseEntry> mEntries = new ArrayList<>();
+    private final AsyncListDiffer<BaseEntry> mDiffer = new AsyncListDiffer<>(this, DIFF);
     private final Callback mCallback;
 
     public MainMsgListAdapter(Callback callback) {
         mCallback = callback;
     }
 
-    public void mergeEntriesIntoDataSet(FileEntry[] fileEntries, ChatEntry[] chatEntries) {
-        int oldSize = mDataSet.size();
-        int pFile = 0, pChat = 0;
-        while (pFile < fileEntries.length || pChat < chatEntries.length) {
-            long t1 = pFile == fileEntries.length ? Long.MAX_VALUE : fileEntries[pFile].createdAt;
-            long t2 = pChat == chatEntries.length ? Long.MAX_VALUE : chatEntries[pChat].createdAt;
-            if (t1 <= t2) {
-                mDataSet.add(fileEntries[pFile++]);
-            } else {
-                mDataSet.add(chatEntries[pChat++]);
+    // a window of older history, in order, goes before the loaded entries
+    public void prependEntries(List<BaseEntry> entries) {
+        mEntries.addAll(0, entries);
+        submit();
+    }
+
+    public BaseEntry first() {
+        return mEntries.isEmpty() ? null : mEntries.get(0);
+    }
+
+    // entries in history order, each goes where it sorts. with older entries not loaded yet, those sorting before
+    // the window are left to the window that loads them
+    public void addEntries(List<BaseEntry> entries, boolean olderLoaded) {
+        for (BaseEntry e : entries) {
+            int pos = Collections.binarySearch(mEntries, e, Timeline.ORDER);
+            if (pos >= 0) {
+                mEntries.set(pos, e);
+            } else if (-pos - 1 > 0 || olderLoaded || mEntries.isEmpty()) {
+                mEntries.add(-pos - 1, e);
             }
         }
-        notifyItemRangeInserted(oldSize, pFile + pChat);
+        submit();
     }
 
-    public void updateFileEntries(FileEntry[] newEntries) {
-        int pOld = -1, pNew = 0;
-        while ((++pOld) < mDataSet.size() && pNew < newEntries.length) {
-            BaseEntry oldItem = mDataSet.get(pOld);
-            if (!(oldItem instanceof FileEntry) || oldItem.id != newEntries[pNew].id) {
+    public void updateProgress(List<TaskProgress> progress) {
+        HashMap<Long, TaskProgress> byId = new HashMap<>();
+        for (TaskProgress p : progress) {
+            byId.put(p.id, p);
+        }
+        boolean changed = false;
+        // running tasks are among the latest entries
+        for (int i = mEntries.size() - 1; i >= 0 && !byId.isEmpty(); --i) {
+            BaseEntry item = mEntries.get(i);
+            if (!(item instanceof FileEntry)) {
                 continue;
             }
-
-            mDataSet.set(pOld, newEntries[pNew++]);
-            notifyItemChanged(pOld);
+            TaskProgress p = byId.remove(item.id);
+            if (p == null) {
+                continue;
+            }
+            FileEntry e = (FileEntry) item;
+            if (e.transferred != p.transferred || e.status != p.status || !e.name.equals(p.name)) {
+                FileEntry updated = copyOf(e);
+                updated.name = p.name;
+                updated.transferred = p.transferred;
+                updated.status = p.status;
+                mEntries.set(i, updated);
+                changed = true;
+            }
         }
+        if (changed) {
+            submit();
+        }
+    }
+
+    private void submit() {
+        mDiffer.submitList(new ArrayList<>(mEntries));
+    }
+
+    private static FileEntry copyOf(FileEntry e) {
+        FileEntry copy = new FileEntry(e.name, e.path, e.size, e.deviceName, e.fromSelf);
+        copy.id = e.id;
+        copy.createdAt = e.createdAt;
+        copy.transferred = e.transferred;
+        copy.status = e.status;
+        copy.transferId = e.transferId;
+        copy.fingerprint = e.fingerprint;
+        return copy;
     }
 
     @Override
     public int getItemViewType(int position) {
-        BaseEntry entry = mDataSet.get(position);
+        BaseEntry entry = mDiffer.getCurrentList().get(position);
         if (entry instanceof FileEntry) {
             return entry.fromSelf ? 0 : 1;
         } else if (entry instanceof ChatEntry) {
@@ -92,12 +161,12 @@ public class MainMsgListAdapter extends RecyclerView.Adapter<MainMsgListAdapter.
     @Override
     public void onBindViewHolder(@NonNull BaseVH<? extends BaseEntry> holder, int position) {
         BaseVH<BaseEntry> _holder = (BaseVH<BaseEntry>) holder; // skip type checking, let Adapter ensure type consistency
-        _holder.setData(mDataSet.get(position));
+        _holder.setData(mDiffer.getCurrentList().get(position));
     }
 
     @Override
     public int getItemCount() {
-        return mDataSet.size();
+        return mDiffer.getCurrentList().size();
     }
 
     public static abstract class BaseVH<T extends BaseEntry> extends RecyclerView.ViewHolder {
@@ -0,0 +1,139 @@
+package com.filetransfer.kolibri.network;
+
+import com.filetransfer.kolibri.db.dao.FileDao;
+import com.filetransfer.kolibri.db.entity.FileEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+// stands in for the room dao on the jvm, rows are kept by id
+class InMemoryFileDao implements FileDao {
+    private final TreeMap<Long, FileEntry> mRows = new TreeMap<>();
+    private long mNextId = 1;
+
+    @Override
+    public synchronized FileEntry[] listByIds(Collection<Long> ids) {
+        ArrayList<FileEntry> entries = new ArrayList<>();
+        for (long id : ids) {
+            FileEntry e = mRows.get(id);
+            if (e != null) {
+                entries.add(e);
+            }
+        }
+        return entries.toArray(new FileEntry[0]);
+    }
+
+    @Override
+    public synchronized FileEntry[] listIdGreaterThan(long id) {
+        return mRows.tailMap(id, false).values().toArray(new FileEntry[0]);
+    }
+
+    @Override
+    public synchronized void updateStatusById(long id, int status) {
+        FileEntry e = mRows.get(id);
+        if (e != null) {
+            e.status = status;
+        }
+    }
+
+    @Override
+    public synchronized void updateTransferredById(long id, long transferred) {
+        FileEntry e = mRows.get(id);
+        if (e != null) {
+            e.transferred = transferred;
+        }
+    }
+
+    @Override
+    public synchronized void updateNameById(long id, String name) {
+        FileEntry e = mRows.get(id);
+        if (e != null) {
+            e.name = name;
+        }
+    }
+
+    @Override
+    public synchronized void abortAllRunningTasks() {
+        for (FileEntry e : mRows.values()) {
+            if (e.status == FileEntry.STATUS_RUNNING) {
+                e.status = FileEntry.STATUS_FAILED;
+            }
+        }
+    }
+
+    @Override
+    public synchronized FileEntry findFailedByTransferId(long transferId, boolean fromSelf) {
+        for (FileEntry e : mRows.descendingMap().values()) {
+            if (e.transferId == transferId && e.fromSelf == fromSelf && e.status == FileEntry.STATUS_FAILED) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized FileEntry[] listReceivedByFingerprint(long fingerprint, long size) {
+        ArrayList<FileEntry> entries = new ArrayList<>();
+        for (FileEntry e : mRows.descendingMap().values()) {
+            if (e.fingerprint == fingerprint && e.size == size && !e.fromSelf && e.status == FileEntry.STATUS_COMPLETED
+                    && entries.size() < 8) {
+                entries.add(e);
+            }
+        }
+        return entries.toArray(new FileEntry[0]);
+    }
+
+    @Override
+    public synchronized FileEntry[] listUnfinishedReceived() {
+        ArrayList<FileEntry> entries = new ArrayList<>();
+        for (FileEntry e : mRows.values()) {
+            if (!e.fromSelf && e.status != FileEntry.STATUS_COMPLETED) {
+                entries.add(e);
+            }
+        }
+        return entries.toArray(new FileEntry[0]);
+    }
+
+    @Override
+    public synchronized void deleteById(long id) {
+        mRows.remove(id);
+    }
+
+    @Override
+    public synchronized long insert(FileEntry obj) {
+        obj.id = mNextId++;
+        mRows.put(obj.id, obj);
+        return obj.id;
+    }
+
+    @Override
+    public synchronized long[] insertAll(List<FileEntry> objs) {
+        long[] ids = new long[objs.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = insert(objs.get(i));
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized void removeAll() {
+        mRows.clear();
+    }
+
+    // rows in the given status, and all rows
+    synchronized int count(int status) {
+        int n = 0;
+        for (FileEntry e : mRows.values()) {
+            if (e.status == status) {
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    synchronized int size() {
+        return mRows.size();
+    }
+}
@@ -0,0 +1,380 @@
+package com.filetransfer.kolibri.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import com.filetransfer.kolibri.db.entity.FileEntry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Loopback throughput of the transfer engine: a controller sends files to itself over 127.0.0.1, the received
+ * files are compared with the sent ones. Every case prints MB/s, the cpu time and the allocations of the process
+ * per MB, so a change of the data path can be held against the numbers before it.
+ *
+ * Nothing runs without -Dkolibri.bench=true, cases of 1 GiB and more only with -Dkolibri.bench.large=true as well.
+ */
+public class TransferBenchmark {
+    private static final long KIB = 1024;
+    private static final long MIB = 1024 * KIB;
+    private static final long GIB = 1024 * MIB;
+    private static final boolean LARGE = Boolean.getBoolean("kolibri.bench.large");
+
+    // how the sender gets at the files
+    private enum Source {
+        // windows mapped from the file
+        MAPPED,
+        // a seekable stream, raw bodies are spliced with transferTo
+        STREAM,
+        // a fifo that cannot seek, read ahead on a thread of its own like a content provider pipe
+        PIPE
+    }
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Before
+    public void enabled() {
+        assumeTrue("benchmarks run with -Dkolibri.bench=true", Boolean.getBoolean("kolibri.bench"));
+    }
+
+    @Test
+    public void singleFile() throws Exception {
+        for (long size : new long[] { KIB, 64 * KIB, MIB, 16 * MIB, 128 * MIB }) {
+            run("single", size, 1, 1);
+        }
+        if (LARGE) {
+            run("single", GIB, 1, 1);
+            run("single", 4 * GIB, 1, 1);
+        }
+    }
+
+    @Test
+    public void sources() throws Exception {
+        for (Source source : Source.values()) {
+            run(source.name().toLowerCase(), 128 * MIB, 1, 1, source, false);
+        }
+        run("stream", 256 * KIB, 100, 1, Source.STREAM, false);
+    }
+
+    @Test
+    public void deflate() throws Exception {
+        run("deflate map", 128 * MIB, 1, 1, Source.MAPPED, true);
+        run("deflate pipe", 128 * MIB, 1, 1, Source.PIPE, true);
+        run("deflate file", 16 * KIB, 500, 1, Source.STREAM, true);
+    }
+
+    @Test
+    public void manySmallFiles() throws Exception {
+        run("batch", KIB, 2000, 1);
+        run("batch", 16 * KIB, 500, 1);
+        run("batch", 256 * KIB, 100, 1);
+    }
+
+    @Test
+    public void concurrentSessions() throws Exception {
+        for (int sessions : new int[] { 2, 4, 8 }) {
+            run("concurrent", 8 * MIB, 4, sessions);
+        }
+        if (LARGE) {
+            run("concurrent", 256 * MIB, 1, 4);
+        }
+    }
+
+    private void run(String name, long size, int count, int sessions) throws Exception {
+        run(name, size, count, sessions, Source.MAPPED, false);
+    }
+
+    // count files of size bytes in every one of the sessions. compressed cases send text that deflates well
+    private void run(String name, long size, int count, int sessions, Source source, boolean compress) throws Exception {
+        if (source == Source.PIPE) {
+            assumeTrue("no mkfifo", mkfifo(mTemp.newFile()));
+        }
+        File root = mTemp.newFolder();
+        File src = new File(root, "src");
+        File dst = new File(root, "dst");
+        assertTrue(src.mkdir() && dst.mkdir());
+        List<List<ILocalFile>> groups = new ArrayList<>();
+        ArrayList<File> sent = new ArrayList<>();
+        for (int s = 0; s < sessions; ++s) {
+            ArrayList<ILocalFile> group = new ArrayList<>();
+            for (int i = 0; i < count; ++i) {
+                File file = new File(src, "f" + s + "-" + i + (compress ? ".log" : ".bin"));
+                if (compress) {
+                    fillText(file, size, 31L * sent.size() + size);
+                } else {
+                    fill(file, size, 31L * sent.size() + size);
+                }
+                sent.add(file);
+                group.add(open(file, source, root));
+            }
+            groups.add(group);
+        }
+
+        InMemoryFileDao dao = new InMemoryFileDao();
+        TransferController tc = new TransferController(dst, dao, () -> {}, 0);
+        tc.setCompression(compress);
+        tc.start(InetAddress.getLoopbackAddress(), "bench");
+        Measure measure;
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!tc.isAccepting()) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("transfer port not bound");
+                }
+                Thread.sleep(1);
+            }
+
+            measure = new Measure();
+            for (List<ILocalFile> group : groups) {
+                tc.sendFiles(group);
+            }
+            // a row on either end for every file
+            int rows = 2 * sent.size();
+            long total = size * sent.size();
+            deadline = System.currentTimeMillis() + 60_000 + total / MIB * 100;
+            while (dao.size() < rows || dao.count(FileEntry.STATUS_RUNNING) > 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail(name + ": timed out");
+                }
+                Thread.sleep(1);
+            }
+            measure.stop(total);
+            assertEquals(name + ": failed transfers", rows, dao.count(FileEntry.STATUS_COMPLETED));
+        } finally {
+            tc.stop();
+        }
+
+        for (File file : sent) {
+            assertSameContent(file, new File(dst, file.getName()));
+        }
+        System.out.println(String.format("%-12s %10s x %4d x %d sessions  %8.1f MB/s  %7.2f cpu ms/MB  %9.1f KB alloc/MB",
+                name, humanSize(size), count, sessions, measure.mbPerSecond, measure.cpuMsPerMb, measure.allocKbPerMb));
+    }
+
+    // wall time, cpu time of the process and allocations of its threads
+    private static class Measure {
+        private final long mStart = System.nanoTime();
+        private final long mCpuStart = processCpuNs();
+        private final long mAllocStart = allocatedBytes();
+        double mbPerSecond;
+        double cpuMsPerMb;
+        double allocKbPerMb;
+
+        void stop(long bytes) {
+            double mb = bytes / (double) MIB;
+            double seconds = (System.nanoTime() - mStart) / 1e9;
+            mbPerSecond = mb / seconds;
+            cpuMsPerMb = (processCpuNs() - mCpuStart) / 1e6 / mb;
+            allocKbPerMb = (allocatedBytes() - mAllocStart) / 1024.0 / mb;
+        }
+
+        private static long processCpuNs() {
+            java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            }
+            return 0;
+        }
+
+        // threads that ended in between are not counted, the loops and disk workers live through a case
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+                return 0;
+            }
+            long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds());
+            long sum = 0;
+            for (long n : allocated) {
+                sum += Math.max(n, 0);
+            }
+            return sum;
+        }
+    }
+
+    private static ILocalFile open(File file, Source source, File root) throws IOException {
+        if (source == Source.MAPPED) {
+            return new MappedLocalFile(file, file.getName());
+        }
+        File path = file;
+        if (source == Source.PIPE) {
+            path = new File(root, "fifo-" + file.getName());
+            assertTrue(mkfifo(path));
+            File from = file;
+            File to = path;
+            Thread writer = new Thread(() -> {
+                try (OutputStream out = new FileOutputStream(to)) {
+                    Files.copy(from.toPath(), out);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "bench-fifo");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        return new StreamFile(file.getName(), file.length(), path, source == Source.PIPE);
+    }
+
+    // what the app does with a descriptor from a content provider
+    private static class StreamFile implements ILocalFile {
+        private final String mName;
+        private final long mSize;
+        private final File mPath;
+        private final boolean mPipe;
+        private FileInputStream mStream;
+        private ReadAheadChannel mSequential;
+
+        StreamFile(String name, long size, File path, boolean pipe) {
+            mName = name;
+            mSize = size;
+            mPath = path;
+            mPipe = pipe;
+        }
+
+        @Override
+        public String name() {
+            return mName;
+        }
+
+        @Override
+        public long size() {
+            return mSize;
+        }
+
+        @Override
+        public synchronized FileInputStream stream() throws IOException {
+            if (mStream == null) {
+                mStream = new FileInputStream(mPath);
+            }
+            return mStream;
+        }
+
+        @Override
+        public synchronized ReadableByteChannel sequential() throws IOException {
+            if (!mPipe) {
+                return stream().getChannel();
+            }
+            if (mSequential == null) {
+                mSequential = new ReadAheadChannel(stream().getChannel());
+            }
+            return mSequential;
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                if (mSequential != null) {
+                    mSequential.close();
+                }
+                if (mStream != null) {
+                    mStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // replaces file with a fifo
+    private static boolean mkfifo(File file) {
+        try {
+            if (file.exists() && !file.delete()) {
+                return false;
+            }
+            return new ProcessBuilder("mkfifo", file.getPath()).start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void fill(File file, long size, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] chunk = new byte[(int) Math.min(size, MIB)];
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long left = size; left > 0; left -= chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(left, chunk.length));
+            }
+        }
+    }
+
+    // log lines, they deflate well
+    private static void fillText(File file, long size, long seed) throws IOException {
+        Random random = new Random(seed);
+        StringBuilder line = new StringBuilder();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII)) {
+            long left = size;
+            for (int i = 0; left > 0; ++i) {
+                line.setLength(0);
+                line.append("2026-10-18 12:00:").append(i % 60).append(" INFO worker-").append(i % 7)
+                        .append(" processed item ").append(i).append(" in ").append(random.nextInt(1000)).append("ms\n");
+                int n = (int) Math.min(left, line.length());
+                out.write(line.toString(), 0, n);
+                left -= n;
+            }
+        }
+    }
+
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        assertTrue(actual + " missing", actual.isFile());
+        assertEquals(actual + " size", expected.length(), actual.length());
+        byte[] a = new byte[(int) MIB];
+        byte[] b = new byte[(int) MIB];
+        try (InputStream ea = new FileInputStream(expected); InputStream eb = new FileInputStream(actual)) {
+            int n;
+            while ((n = readFully(ea, a)) > 0) {
+                assertEquals(n, readFully(eb, b));
+                if (!Arrays.equals(a, b)) {
+                    fail(actual + " differs");
+                }
+            }
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int n = 0;
+        while (n < buf.length) {
+            int k = in.read(buf, n, buf.length - n);
+            if (k < 0) {
+                break;
+            }
+            n += k;
+        }
+        return n;
+    }
+
+    private static String humanSize(long size) {
+        if (size >= GIB) {
+            return size / GIB + " GiB";
+        }
+        if (size >= MIB) {
+            return size / MIB + " MiB";
+        }
+        return size / KIB + " KiB";
+    }
+}